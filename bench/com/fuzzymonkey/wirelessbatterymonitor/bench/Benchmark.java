@@ -0,0 +1,51 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+/**
+ * One measured operation.  {@link #run(int)} performs the operation
+ * {@code ops} times and returns something derived from the work so the
+ * JIT can't throw it away.
+ */
+public abstract class Benchmark {
+    private final String mName;
+    private boolean mAllocationFree = false;
+
+    protected Benchmark(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Mark a path that promises not to allocate per op; the harness fails
+     * the run if it does.
+     */
+    public Benchmark allocationFree() {
+        mAllocationFree = true;
+        return this;
+    }
+
+    public boolean isAllocationFree() {
+        return mAllocationFree;
+    }
+
+    public abstract long run(int ops);
+}
@@ -0,0 +1,120 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.util.List;
+import java.util.Random;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.ColumnarEncoder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SegmentRecorder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TimeSeriesDecoder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TimeSeriesEncoder;
+
+/**
+ * Columnar ride compression: encode and decode cost per sample, plus the
+ * compression ratio against the raw 16 byte segment records for a
+ * synthetic hour of riding at 10 Hz per channel.
+ */
+class CodecBenchmarks {
+    private static final int SAMPLES = 36000; /* an hour at 10 Hz */
+
+    static void register(List<Benchmark> list) {
+        final long[][] times = new long[Channel.DEVICE_COUNT][SAMPLES];
+        final float[][] values = new float[Channel.DEVICE_COUNT][SAMPLES];
+        synthesize(times, values);
+
+        ColumnarEncoder ride = new ColumnarEncoder();
+        for (int i = 0; i < SAMPLES; i++) {
+            for (int channel = 0; channel < Channel.DEVICE_COUNT; channel++) {
+                ride.onSample(channel, times[channel][i], values[channel][i]);
+            }
+        }
+        long raw = (long) ride.getCount() * SegmentRecorder.RECORD_SIZE;
+        System.out.println(String.format("codec: %d samples, %d raw bytes, %d compressed, ratio %.1fx",
+                ride.getCount(), raw, ride.getByteLength(), (double) raw / ride.getByteLength()));
+
+        list.add(new Benchmark("codec.encode_sample") {
+            final TimeSeriesEncoder encoder = new TimeSeriesEncoder(SAMPLES * 4);
+            int next = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    if (next == SAMPLES) {
+                        encoder.reset();
+                        next = 0;
+                    }
+                    encoder.append(times[Channel.CURRENT][next], values[Channel.CURRENT][next]);
+                    next++;
+                }
+                return encoder.getByteLength();
+            }
+        });
+
+        final TimeSeriesEncoder column = new TimeSeriesEncoder(SAMPLES * 4);
+        for (int i = 0; i < SAMPLES; i++) {
+            column.append(times[Channel.CURRENT][i], values[Channel.CURRENT][i]);
+        }
+        list.add(new Benchmark("codec.decode_sample") {
+            TimeSeriesDecoder decoder = null;
+
+            public long run(int ops) {
+                float sum = 0;
+                for (int done = 0; done < ops; done++) {
+                    if (decoder == null || !decoder.hasNext()) {
+                        decoder = new TimeSeriesDecoder(column.getBytes(), 0,
+                                column.getByteLength(), column.getCount());
+                    }
+                    decoder.next();
+                    sum += decoder.getValue();
+                }
+                return (long) sum;
+            }
+        });
+    }
+
+    /**
+     * Something like a ride: speed ramps between stops, current follows
+     * acceleration with sensor noise, voltage sags with current.  Values
+     * are rounded the way the hardware prints them and timestamps carry
+     * a few ms of arrival jitter.
+     */
+    static void synthesize(long[][] times, float[][] values) {
+        Random random = new Random(42);
+        long t = 1300000000000L;
+        double speed = 0;
+        double target = 15;
+        for (int i = 0; i < times[0].length; i++) {
+            if (i % 600 == 0) {
+                target = random.nextInt(4) == 0 ? 0 : 10 + random.nextInt(15);
+            }
+            double accel = (target - speed) * 0.02;
+            speed += accel;
+            double current = Math.max(0, accel * 200 + speed * 0.8) + random.nextGaussian() * 0.2;
+            double voltage = 39.5 - current * 0.02 - i * 0.00002;
+
+            for (int channel = 0; channel < times.length; channel++) {
+                times[channel][i] = t + random.nextInt(5);
+            }
+            values[Channel.SPEED][i] = Math.round(speed * 10) / 10f;
+            values[Channel.CURRENT][i] = Math.round(current * 100) / 100f;
+            values[Channel.VOLTAGE][i] = Math.round(voltage * 10) / 10f;
+            t += 100;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.util.List;
+import java.util.Random;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.ChannelFilters;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.EmaFilter;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.MedianFilter;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.MovingAverageFilter;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SignalFilter;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SpikeFilter;
+
+/**
+ * Cost of each signal filter stage, and of the chain MonitorService puts
+ * on the displayed pack current, on a noisy current trace with the odd
+ * spike.
+ * One op is one sample.
+ */
+class FilterBenchmarks {
+    private static final int SAMPLES = 4096;
+
+    static void register(List<Benchmark> list) {
+        final float[] current = new float[SAMPLES];
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            current[i] = 15 + 10 * (float) Math.sin(i / 200.0) + (float) random.nextGaussian() * 2;
+            if (random.nextInt(50) == 0) {
+                current[i] += 80; /* hall sensor glitch */
+            }
+        }
+
+        list.add(stage("filter.ema", current, new EmaFilter(300)));
+        list.add(stage("filter.moving_average_16", current, new MovingAverageFilter(16)));
+        list.add(stage("filter.median_5", current, new MedianFilter(5)));
+        list.add(stage("filter.median_31", current, new MedianFilter(31)));
+        list.add(stage("filter.spike", current, new SpikeFilter(40, 2)));
+
+        final int channel = Channel.CURRENT;
+        final float[] sink = new float[1];
+        SampleListener output = new SampleListener() {
+            public void onSample(int channel, long timestamp, float value) {
+                sink[0] += value;
+            }
+        };
+        final ChannelFilters none = new ChannelFilters(output);
+        list.add(new Benchmark("filter.chain_passthrough") {
+            int next = 0;
+            long now = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    none.onSample(channel, now += 30, current[next]);
+                    next = (next + 1) % SAMPLES;
+                }
+                return (long) sink[0];
+            }
+        });
+        final ChannelFilters chain = new ChannelFilters(output);
+        chain.add(channel, new SpikeFilter(40, 2));
+        chain.add(channel, new MedianFilter(5));
+        chain.add(channel, new EmaFilter(300));
+        list.add(new Benchmark("filter.chain_current") {
+            int next = 0;
+            long now = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    chain.onSample(channel, now += 30, current[next]);
+                    next = (next + 1) % SAMPLES;
+                }
+                return (long) sink[0];
+            }
+        });
+    }
+
+    private static Benchmark stage(String name, final float[] samples, final SignalFilter filter) {
+        return new Benchmark(name) {
+            int next = 0;
+            long now = 0;
+
+            public long run(int ops) {
+                float total = 0;
+                for (int done = 0; done < ops; done++) {
+                    total += filter.filter(now += 30, samples[next]);
+                    next = (next + 1) % SAMPLES;
+                }
+                return (long) total;
+            }
+        };
+    }
+}
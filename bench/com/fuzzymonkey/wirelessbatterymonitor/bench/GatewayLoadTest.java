@@ -0,0 +1,154 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.GatewayServer;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SyntheticSource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryDecoder;
+
+/**
+ * Load test for {@link GatewayServer}: stands in for N Wi-Fi bridges with
+ * local TCP clients writing the text protocol as fast as they can, and
+ * reports the samples per second the gateway parses at each connection
+ * count.  Client and server share the machine, so the numbers are a floor
+ * for what a dedicated collector would manage.
+ *
+ * <pre>
+ *   GatewayLoadTest [-selectors n] [-seconds s] [connections...]
+ * </pre>
+ */
+public class GatewayLoadTest {
+    private static final int CLIENT_THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int selectors = 2;
+        int seconds = 3;
+        List<Integer> steps = new ArrayList<Integer>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-selectors") && i + 1 < args.length) {
+                selectors = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seconds") && i + 1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else {
+                steps.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (steps.size() == 0) {
+            steps.add(1);
+            steps.add(10);
+            steps.add(100);
+            steps.add(500);
+        }
+
+        final AtomicLong delivered = new AtomicLong(0);
+        final SampleListener sink = new SampleListener() {
+            public void onSample(int channel, long timestamp, float value) {
+                delivered.incrementAndGet();
+            }
+        };
+        GatewayServer server = new GatewayServer(0, selectors, new GatewayServer.ConnectionListener() {
+            public SampleListener connected(int id, SocketAddress remote) {
+                return sink;
+            }
+
+            public void disconnected(int id) {
+            }
+        });
+        server.start();
+
+        /* one chunk of ready made lines every client keeps sending */
+        SyntheticSource source = new SyntheticSource("load", 0, SyntheticSource.WAVE_SINE, 60,
+                TelemetryDecoder.PROTOCOL_TEXT);
+        byte[] lines = new byte[256 * SyntheticSource.MAX_SAMPLE_BYTES];
+        final int length = source.encode(lines, 0, 256);
+        final byte[] chunk = lines;
+
+        System.out.println(String.format("%d selector threads, %d s per step", selectors, seconds));
+        System.out.println(String.format("%12s %16s %14s", "connections", "samples/s", "MB/s"));
+        for (int connections : steps) {
+            final SocketChannel[] clients = new SocketChannel[connections];
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+            for (int i = 0; i < connections; i++) {
+                clients[i] = SocketChannel.open(address);
+            }
+            while (server.getConnectionCount() < connections) {
+                Thread.sleep(10);
+            }
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            Thread[] writers = new Thread[Math.min(CLIENT_THREADS, connections)];
+            for (int t = 0; t < writers.length; t++) {
+                final int first = t;
+                final int stride = writers.length;
+                writers[t] = new Thread() {
+                    public void run() {
+                        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                        try {
+                            while (running.get()) {
+                                for (int i = first; i < clients.length; i += stride) {
+                                    buffer.clear().limit(length);
+                                    while (buffer.hasRemaining()) {
+                                        clients[i].write(buffer);
+                                    }
+                                }
+                            }
+                        } catch (IOException e) {
+                            /* server went away */
+                        }
+                    }
+                };
+                writers[t].start();
+            }
+
+            Thread.sleep(500); /* let it settle */
+            long samples = server.getSampleCount();
+            long bytes = server.getByteCount();
+            long start = System.nanoTime();
+            Thread.sleep(seconds * 1000L);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            samples = server.getSampleCount() - samples;
+            bytes = server.getByteCount() - bytes;
+
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+            while (server.getConnectionCount() > 0) {
+                Thread.sleep(10);
+            }
+            System.out.println(String.format("%12d %16.0f %14.1f", connections,
+                    samples / elapsed, bytes / elapsed / 1e6));
+        }
+        server.stop();
+        System.out.println("delivered " + delivered.get() + " samples");
+    }
+}
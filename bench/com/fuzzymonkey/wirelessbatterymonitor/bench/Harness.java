@@ -0,0 +1,195 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal benchmark runner for the ingest and render hot paths.  Each
+ * benchmark is warmed up, then timed over several rounds; throughput and
+ * bytes allocated per operation (from the HotSpot thread allocation
+ * counter) are printed and written as CSV so runs can be compared between
+ * commits.  Benchmarks marked {@link Benchmark#allocationFree} that
+ * allocate ALLOCATION_LIMIT bytes per op or more fail the run, so a
+ * regression there can't pass unnoticed.  The limit is well under one
+ * object per thousand ops but above the odd stray byte the JIT or GC
+ * charges to the thread over millions of ops.
+ *
+ * <pre>
+ *   Harness [-o results.csv] [filter...]
+ *   Harness -compare before.csv after.csv
+ * </pre>
+ */
+public class Harness {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+    private static final long ROUND_NANOS = 200L * 1000 * 1000;
+    private static final double ALLOCATION_LIMIT = 0.01; /* bytes per op */
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sBlackhole;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("-compare")) {
+            compare(args[1], args[2]);
+            return;
+        }
+
+        String output = "bench-results.csv";
+        List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                filters.add(args[i]);
+            }
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        IngestBenchmarks.register(benchmarks);
+        RenderBenchmarks.register(benchmarks);
+        CodecBenchmarks.register(benchmarks);
+        SourceBenchmarks.register(benchmarks);
+        FilterBenchmarks.register(benchmarks);
+
+        PrintWriter out = new PrintWriter(new FileWriter(output));
+        out.println("benchmark,ops_per_sec,bytes_per_op");
+        System.out.println(String.format("%-40s %16s %12s", "benchmark", "ops/s", "B/op"));
+        List<String> allocating = new ArrayList<String>();
+        for (Benchmark b : benchmarks) {
+            if (!matches(b.getName(), filters)) {
+                continue;
+            }
+            double[] result = measure(b);
+            boolean failed = b.isAllocationFree() && result[1] >= ALLOCATION_LIMIT;
+            System.out.println(String.format("%-40s %16.0f %12.2f%s", b.getName(), result[0], result[1],
+                    failed ? "  ALLOCATES" : ""));
+            out.println(b.getName() + "," + result[0] + "," + result[1]);
+            if (failed) {
+                allocating.add(b.getName());
+            }
+        }
+        out.close();
+        System.out.println("results written to " + output + " (" + (sBlackhole & 1) + ")");
+        if (allocating.size() > 0) {
+            System.out.println("allocation free benchmarks allocated: " + allocating);
+            System.exit(1);
+        }
+    }
+
+    private static boolean matches(String name, List<String> filters) {
+        if (filters.size() == 0) {
+            return true;
+        }
+        for (String f : filters) {
+            if (name.indexOf(f) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return { ops per second, bytes allocated per op }
+     */
+    private static double[] measure(Benchmark b) {
+        /* size a batch so one call takes roughly a millisecond */
+        int batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            sBlackhole += b.run(batch);
+            if (System.nanoTime() - start > 1000 * 1000 || batch >= (1 << 24)) {
+                break;
+            }
+            batch <<= 1;
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(b, batch);
+        }
+
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long[] r = round(b, batch);
+            totalOps += r[0];
+            totalNanos += r[1];
+            totalBytes += r[2];
+        }
+        return new double[] {
+            totalOps * 1e9 / totalNanos,
+            (double) totalBytes / totalOps
+        };
+    }
+
+    private static long[] round(Benchmark b, int batch) {
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long bytesBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sBlackhole += b.run(batch);
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        long bytes = THREADS.getThreadAllocatedBytes(thread) - bytesBefore;
+        return new long[] { ops, elapsed, bytes };
+    }
+
+    private static void compare(String before, String after) throws IOException {
+        Map<String, double[]> a = read(before);
+        Map<String, double[]> b = read(after);
+        System.out.println(String.format("%-40s %12s %12s %8s %10s %10s",
+                "benchmark", "before", "after", "change", "B/op was", "B/op now"));
+        for (Map.Entry<String, double[]> e : b.entrySet()) {
+            double[] was = a.get(e.getKey());
+            double[] now = e.getValue();
+            if (was == null) {
+                System.out.println(String.format("%-40s %12s %12.0f", e.getKey(), "-", now[0]));
+                continue;
+            }
+            System.out.println(String.format("%-40s %12.0f %12.0f %+7.1f%% %10.1f %10.1f",
+                    e.getKey(), was[0], now[0], (now[0] / was[0] - 1) * 100, was[1], now[1]));
+        }
+    }
+
+    private static Map<String, double[]> read(String file) throws IOException {
+        Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line = in.readLine(); /* header */
+        while ((line = in.readLine()) != null) {
+            String[] f = line.split(",");
+            results.put(f[0], new double[] { Double.parseDouble(f[1]), Double.parseDouble(f[2]) });
+        }
+        in.close();
+        return results;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.AlertEngine;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.BinaryFrame;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.FixedFormat;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatencyProbe;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LineParser;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryDecoder;
+
+/**
+ * Ingest path: wire parsing, the per-sample payload handed to the UI
+ * handler, the string to number conversions the UI used to do and the
+ * alert rules every sample passes.
+ *
+ * android.os.Message and Bundle don't exist off the device, so the
+ * "legacy bundle" case models what a Bundle costs on API 7: a HashMap
+ * holding the value re-encoded as a String.  "packed arg" is the current
+ * path, the float bits in Message.arg1 formatted into a reused char[].
+ */
+class IngestBenchmarks {
+    private static final int LINES = 1024;
+
+    static void register(List<Benchmark> list) {
+        final String[] text = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            float value;
+            String key;
+            switch (i % 3) {
+            case 0:
+                key = "s";
+                value = 10 + (i % 150) / 10f;
+                break;
+            case 1:
+                key = "v";
+                value = 36 + (i % 40) / 10f;
+                break;
+            default:
+                key = "a";
+                value = (i % 400) / 10f - 5;
+                break;
+            }
+            text[i] = key + "=" + value;
+        }
+        StringBuilder all = new StringBuilder();
+        for (String line : text) {
+            all.append(line).append("\r\n");
+        }
+        final byte[] textBytes = all.toString().getBytes();
+        final int[] lineStart = new int[LINES];
+        final int[] lineLength = new int[LINES];
+        for (int i = 0, pos = 0; i < LINES; i++) {
+            lineStart[i] = pos;
+            lineLength[i] = text[i].length() + 2;
+            pos += lineLength[i];
+        }
+
+        final byte[] frames = new byte[LINES * BinaryFrame.LENGTH];
+        for (int i = 0; i < LINES; i++) {
+            String[] kv = text[i].split("=");
+            BinaryFrame.encode(Channel.fromKey(kv[0].charAt(0)), Float.parseFloat(kv[1]), i,
+                    frames, i * BinaryFrame.LENGTH);
+        }
+
+        final float[] sink = new float[1];
+        final SampleListener listener = new SampleListener() {
+            public void onSample(int channel, long timestamp, float value) {
+                sink[0] += value;
+            }
+        };
+
+        list.add(new Benchmark("parse.legacy_scanner") {
+            public long run(int ops) {
+                long sum = 0;
+                try {
+                    BufferedReader br = null;
+                    for (int done = 0; done < ops; done++) {
+                        String line = br == null ? null : br.readLine();
+                        if (line == null) {
+                            br = new BufferedReader(new InputStreamReader(
+                                    new ByteArrayInputStream(textBytes)));
+                            line = br.readLine();
+                        }
+                        /* same work ConnectedThread did before LineParser */
+                        Scanner scanner = new Scanner(line);
+                        scanner.useDelimiter("=");
+                        if (line.contains("=") && scanner.hasNext()) {
+                            String name = scanner.next();
+                            String value = scanner.next();
+                            if (name.trim().equalsIgnoreCase("s")
+                                    || name.trim().equalsIgnoreCase("v")
+                                    || name.trim().equalsIgnoreCase("a")) {
+                                sum += value.trim().length();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return sum;
+            }
+        });
+
+        /* the text parser on its own, as BluetoothSource and the gateway
+           drive it; both promise no allocation per line */
+        list.add(new Benchmark("parse.line_parser") {
+            final LineParser parser = new LineParser(listener);
+            int next = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    parser.feed(textBytes, lineStart[next], lineLength[next]);
+                    next = (next + 1) % LINES;
+                }
+                return parser.getSampleCount();
+            }
+        }.allocationFree());
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(textBytes.length);
+        direct.put(textBytes);
+        list.add(new Benchmark("parse.line_parser_direct") {
+            final LineParser parser = new LineParser(listener, 0);
+            int next = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    direct.limit(lineStart[next] + lineLength[next]).position(lineStart[next]);
+                    parser.feed(direct);
+                    next = (next + 1) % LINES;
+                }
+                return parser.getSampleCount();
+            }
+        }.allocationFree());
+
+        list.add(new Benchmark("parse.text_decoder") {
+            final TelemetryDecoder decoder = new TelemetryDecoder(listener);
+            int next = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    decoder.feed(textBytes, lineStart[next], lineLength[next]);
+                    next = (next + 1) % LINES;
+                }
+                return (long) sink[0];
+            }
+        }.allocationFree());
+
+        /* the same with the latency probe stamping every sample */
+        list.add(new Benchmark("parse.text_decoder_probed") {
+            final TelemetryDecoder decoder = new TelemetryDecoder(new LatencyProbe().tap(listener));
+            int next = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    decoder.feed(textBytes, lineStart[next], lineLength[next]);
+                    next = (next + 1) % LINES;
+                }
+                return (long) sink[0];
+            }
+        }.allocationFree());
+
+        list.add(new Benchmark("parse.binary_decoder") {
+            final TelemetryDecoder decoder = new TelemetryDecoder(listener);
+            int next = 0;
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    decoder.feed(frames, next * BinaryFrame.LENGTH, BinaryFrame.LENGTH);
+                    next = (next + 1) % LINES;
+                }
+                return (long) sink[0];
+            }
+        }.allocationFree());
+
+        final float[] values = new float[LINES];
+        final String[] valueText = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            valueText[i] = text[i].substring(2);
+            values[i] = Float.parseFloat(valueText[i]);
+        }
+
+        list.add(new Benchmark("dispatch.legacy_bundle_model") {
+            int next = 0;
+
+            public long run(int ops) {
+                long sum = 0;
+                for (int done = 0; done < ops; done++) {
+                    Map<String, Object> bundle = new HashMap<String, Object>();
+                    bundle.put("toast", Float.toString(values[next]));
+                    sum += bundle.size();
+                    next = (next + 1) % LINES;
+                }
+                return sum;
+            }
+        });
+
+        list.add(new Benchmark("dispatch.packed_arg") {
+            final char[] text = new char[FixedFormat.MAX_LENGTH];
+            int next = 0;
+
+            public long run(int ops) {
+                long sum = 0;
+                for (int done = 0; done < ops; done++) {
+                    /* what the service packs into arg1 and the UI unpacks
+                       and formats for its TextView */
+                    int arg1 = Float.floatToIntBits(values[next]);
+                    sum += FixedFormat.format(Float.intBitsToFloat(arg1), 2, text, 0);
+                    next = (next + 1) % LINES;
+                }
+                return sum;
+            }
+        });
+
+        list.add(new Benchmark("convert.float_valueOf") {
+            int next = 0;
+
+            public long run(int ops) {
+                float sum = 0;
+                for (int done = 0; done < ops; done++) {
+                    sum += Float.valueOf(valueText[next]).floatValue();
+                    next = (next + 1) % LINES;
+                }
+                return (long) sum;
+            }
+        });
+
+        list.add(new Benchmark("convert.double_valueOf_trim") {
+            int next = 0;
+
+            public long run(int ops) {
+                double sum = 0;
+                for (int done = 0; done < ops; done++) {
+                    sum += Double.valueOf(valueText[next].trim()).doubleValue();
+                    next = (next + 1) % LINES;
+                }
+                return (long) sum;
+            }
+        });
+
+        final int[] channels = new int[LINES];
+        for (int i = 0; i < LINES; i++) {
+            channels[i] = Channel.fromKey(text[i].charAt(0));
+        }
+
+        list.add(new Benchmark("alert.pack_rules") {
+            final AlertEngine engine = new AlertEngine();
+            int next = 0;
+            long now = 0;
+            {
+                engine.addPackRules(36);
+            }
+
+            public long run(int ops) {
+                for (int done = 0; done < ops; done++) {
+                    /* the current swings through the high current
+                       rule's trigger and clear levels */
+                    engine.onSample(channels[next], now += 10, values[next]);
+                    next = (next + 1) % LINES;
+                }
+                return engine.getRaisedCount();
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.util.List;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.FixedFormat;
+import com.fuzzymonkey.wirelessbatterymonitor.view.BatteryGeometry;
+
+/**
+ * Render path: the per-frame geometry and text formatting SpeedometerView
+ * and BatteryView do in onDraw.  Canvas calls themselves need a device;
+ * one op here is the non-drawing work of one frame, and none of it may
+ * allocate.  The speedometer's dial is drawn once into a bitmap, not per
+ * frame, so it has no benchmark here.
+ */
+class RenderBenchmarks {
+    static void register(List<Benchmark> list) {
+        list.add(new Benchmark("render.speedometer_labels") {
+            final char[] text = new char[FixedFormat.MAX_LENGTH];
+            float value = 0;
+
+            public long run(int ops) {
+                long sum = 0;
+                for (int done = 0; done < ops; done++) {
+                    /* tick labels live in the cached dial, only the
+                       reading is formatted per frame */
+                    sum += FixedFormat.format(value, 1, text, 0);
+                    value = value > 40 ? 0 : value + 0.1f;
+                }
+                return sum;
+            }
+        }.allocationFree());
+
+        list.add(new Benchmark("render.battery_frame") {
+            final char[] text = new char[BatteryGeometry.MAX_TEXT];
+            final char[] label = " v".toCharArray();
+            double value = 34;
+
+            public long run(int ops) {
+                long sum = 0;
+                for (int done = 0; done < ops; done++) {
+                    /* BatteryView.onDraw(): level bar, then reading + label;
+                       alternate frames take the state of charge branch */
+                    float stateOfCharge = (done & 1) == 0 ? Float.NaN : (float) value;
+                    sum += (long) BatteryGeometry.level(value, 34.2, 40, stateOfCharge, 300);
+                    sum += BatteryGeometry.reading(value, label, text);
+                    value = value > 40 ? 34 : value + 0.01;
+                }
+                return sum;
+            }
+        }.allocationFree());
+    }
+}
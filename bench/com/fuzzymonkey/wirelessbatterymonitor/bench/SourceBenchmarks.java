@@ -0,0 +1,73 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.util.List;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatestValueMailbox;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleDispatcher;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SyntheticSource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryDecoder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryPipeline;
+
+/**
+ * Whole ingest pipeline driven by a {@link SyntheticSource}: wire bytes
+ * generated, decoded, moved into a device slot and fanned out through the
+ * same {@link TelemetryPipeline} MonitorService runs (without recording,
+ * which needs a disk and its own thread).  One op is one sample; compare against the
+ * ~30 samples/s a real monitor sends.
+ */
+class SourceBenchmarks {
+    private static final int BATCH = 256;
+
+    static void register(List<Benchmark> list) {
+        list.add(pipeline("source.synthetic_text_pipeline", TelemetryDecoder.PROTOCOL_TEXT));
+        list.add(pipeline("source.synthetic_binary_pipeline", TelemetryDecoder.PROTOCOL_BINARY));
+    }
+
+    private static Benchmark pipeline(String name, int protocol) {
+        TelemetryPipeline pipeline = new TelemetryPipeline(null, 20, 36);
+        pipeline.start();
+        final SampleDispatcher samples = pipeline.getSamples();
+        samples.add(new LatestValueMailbox());
+
+        final long[] count = new long[1];
+        SampleListener session = new SampleListener() {
+            public void onSample(int channel, long timestamp, float value) {
+                count[0]++;
+                samples.onSample(Channel.device(0, channel), timestamp, value);
+            }
+        };
+        final SyntheticSource source = new SyntheticSource("bench", 0,
+                SyntheticSource.WAVE_SINE, 60, protocol);
+        final TelemetryDecoder decoder = new TelemetryDecoder(session);
+        final byte[] buffer = new byte[BATCH * SyntheticSource.MAX_SAMPLE_BYTES];
+
+        return new Benchmark(name) {
+            public long run(int ops) {
+                for (int done = 0; done < ops; done += BATCH) {
+                    int n = Math.min(BATCH, ops - done);
+                    decoder.feed(buffer, 0, source.encode(buffer, 0, n));
+                }
+                return count[0];
+            }
+        };
+    }
+}
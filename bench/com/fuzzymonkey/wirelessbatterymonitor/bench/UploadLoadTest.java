@@ -0,0 +1,175 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.ColumnarDecoder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.RideUploader;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SegmentRecorder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Load test for {@link RideUploader} against a local stand-in for the
+ * fleet server, which decodes every chunk and keeps the ride and offset
+ * of each so duplicates show.  Records a ride, uploads half of it, stops
+ * the uploader and starts a fresh one on the same directory to check the
+ * resume, with every Nth request failing to exercise the backoff.
+ * Reports samples per second, bytes per sample and chunk latency.
+ *
+ * <pre>
+ *   UploadLoadTest [-samples n] [-fail n]
+ * </pre>
+ */
+public class UploadLoadTest {
+    public static void main(String[] args) throws Exception {
+        int samples = 2000000;
+        int failEvery = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-samples") && i + 1 < args.length) {
+                samples = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-fail") && i + 1 < args.length) {
+                failEvery = Integer.parseInt(args[++i]);
+            }
+        }
+
+        File directory = new File(System.getProperty("java.io.tmpdir"), "upload-load-" + System.nanoTime());
+        directory.mkdirs();
+        long recorded = record(directory, samples);
+        System.out.println("recorded " + recorded + " samples to " + directory);
+
+        final Set<String> chunks = new HashSet<String>();
+        final AtomicLong received = new AtomicLong(0);
+        final AtomicLong duplicates = new AtomicLong(0);
+        final AtomicLong requests = new AtomicLong(0);
+        final int fail = failEvery;
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rides", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readAll(exchange.getRequestBody());
+                if (fail > 0 && requests.incrementAndGet() % fail == 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                String key = exchange.getRequestHeaders().getFirst("X-Ride") + "@"
+                        + exchange.getRequestHeaders().getFirst("X-Offset");
+                int status = 200;
+                synchronized (chunks) {
+                    if (!chunks.add(key)) {
+                        duplicates.incrementAndGet();
+                        status = 409;
+                    }
+                }
+                if (status == 200) {
+                    final long[] count = new long[1];
+                    new ColumnarDecoder(body, 0, body.length).replay(new SampleListener() {
+                        public void onSample(int channel, long timestamp, float value) {
+                            count[0]++;
+                        }
+                    });
+                    received.addAndGet(count[0]);
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/rides");
+
+        /* first run: stop about half way */
+        RideUploader uploader = new RideUploader(directory, url, 0);
+        uploader.setFlushNewest(true);
+        long start = System.nanoTime();
+        uploader.start();
+        while (received.get() < recorded / 2) {
+            Thread.sleep(5);
+        }
+        uploader.stop();
+        long first = received.get();
+        report("first run", uploader);
+
+        /* second run picks up from the checkpoint */
+        uploader = new RideUploader(directory, url, 0);
+        uploader.setFlushNewest(true);
+        uploader.start();
+        while (received.get() < recorded) {
+            Thread.sleep(5);
+        }
+        long elapsed = System.nanoTime() - start;
+        uploader.stop();
+        report("resumed", uploader);
+        server.stop(0);
+
+        System.out.printf("received %d of %d samples (%d before resume), %d duplicate chunks, %.0f samples/s overall%n",
+                received.get(), recorded, first, duplicates.get(), received.get() * 1e9 / elapsed);
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    private static long record(File directory, int samples) throws InterruptedException {
+        SegmentRecorder recorder = new SegmentRecorder(directory, 1 << 18, 1 << 16);
+        recorder.start();
+        long now = 1300000000000L;
+        for (int i = 0; i < samples; i++) {
+            int channel = i % 3;
+            float value = channel == Channel.VOLTAGE ? 36.5f + (i / 300) % 8 * 0.1f
+                    : channel == Channel.CURRENT ? (i / 30) % 200 * 0.1f : (i / 90) % 250 * 0.1f;
+            recorder.onSample(channel, now + i / 3 * 10, value);
+            if (i % 4096 == 0) {
+                /* stay under the queue, a real monitor is much slower */
+                Thread.sleep(1);
+            }
+        }
+        recorder.stop();
+        return recorder.getRecordedCount();
+    }
+
+    private static void report(String label, RideUploader uploader) {
+        System.out.printf("%-10s %d samples in %d chunks, %.2f bytes/sample, %.0f samples/s sending, "
+                + "%d failures, chunk ms %s%n", label, uploader.getSampleCount(), uploader.getChunkCount(),
+                uploader.getBytesPerSample(), uploader.getThroughput(), uploader.getFailureCount(),
+                uploader.getChunkLatency().summary());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,403 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.AlertEngine;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.AlertRule;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.GatewayServer;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatestValueMailbox;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.ReconnectBackoff;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.RideUploader;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SegmentRecorder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.StreamSource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SyntheticSource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TcpSource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryDecoder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryPipeline;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetrySource;
+
+/**
+ * Headless ingest for installs where a Linux box, not a phone, reads the
+ * monitors: solar charging stations and the like.  Runs the same
+ * {@link TelemetryPipeline} as the app and records to the same segment
+ * format, so rides from either open with the same tools.
+ *
+ * <pre>
+ *   IngestDaemon [-d dir] [-capacity Ah] [-volts V] [-status seconds]
+ *                [-gateway port [-selectors n]] [-upload url [-rate bytes/s]] source...
+ *
+ *   source:  path            file or named pipe, ends at end of file
+ *            -               standard input
+ *            tcp:host:port   serial to TCP bridge, reconnects when dropped
+ *            synthetic:rate  generated samples, for trying things out
+ * </pre>
+ *
+ * Each source gets a device slot, in order.  With -gateway, Wi-Fi bridges
+ * can also connect over TCP (see {@link GatewayServer}) and take the
+ * remaining slots; bridges beyond that are refused, since the pipeline
+ * only has {@link Channel#MAX_DEVICES} slots.  Exits when every source has
+ * ended and there is no gateway, or on SIGINT/SIGTERM, flushing the
+ * recording either way.  With -upload, recorded rides are also sent to
+ * the fleet server by a {@link RideUploader}; a ride cut short by exit
+ * goes up on the next start.  Alerts (see {@link AlertEngine}) are
+ * logged as they raise and clear.
+ */
+public class IngestDaemon {
+    private static final long RECONNECT_BASE = 500;
+    private static final long RECONNECT_MAX = 30 * 1000;
+    private static final long ALERT_TICK = 1000; /* ms between link checks */
+    /* ms to wait for sessions to finish on stop; a thread stuck reading
+       stdin or a pipe can't be woken, so it is left behind.  Well inside
+       the shutdown hook's wait, so the recording is still flushed */
+    private static final long SESSION_STOP_TIMEOUT = 2 * 1000;
+
+    private final TelemetryPipeline mPipeline;
+    private final List<Session> mSessions = new ArrayList<Session>();
+    private volatile boolean mStopping = false;
+
+    /* bridges connecting over TCP, and the slot each one holds */
+    private GatewayServer mGateway = null;
+    private final int[] mSlotOwner = new int[Channel.MAX_DEVICES]; /* connection id + 1, 0 free */
+
+    private RideUploader mUploader = null;
+
+    public IngestDaemon(TelemetryPipeline pipeline) {
+        mPipeline = pipeline;
+        mPipeline.getAlerts().setListener(new AlertEngine.AlertListener() {
+            public void onAlert(AlertRule rule) {
+                log((rule.isActive() ? (rule.isCritical() ? "CRITICAL " : "WARNING ") : "cleared ")
+                        + rule.getMessage() + (Float.isNaN(rule.getValue()) ? "" : " at " + rule.getValue()));
+            }
+        });
+    }
+
+    /**
+     * One source on its own thread: open, read, and on failure back off
+     * and try again, until the source ends or the daemon stops.
+     */
+    private class Session extends Thread {
+        private final int mSlot;
+        private final TelemetrySource mSource;
+        private final SampleListener mOutput;
+        private final ReconnectBackoff mBackoff = new ReconnectBackoff(RECONNECT_BASE, RECONNECT_MAX);
+
+        Session(int slot, TelemetrySource source) {
+            super("Session-" + slot);
+            /* may be abandoned in a read that nothing can interrupt */
+            setDaemon(true);
+            mSlot = slot;
+            mSource = source;
+            mOutput = mPipeline.slot(slot);
+        }
+
+        public void run() {
+            while (!mStopping) {
+                try {
+                    mSource.open();
+                    log("reading " + mSource.getName());
+                    mBackoff.reset();
+                    mSource.run(mOutput);
+                    log(mSource.getName() + " ended");
+                    /* not a lost link */
+                    mPipeline.getAlerts().reset(Channel.device(mSlot, Channel.VOLTAGE));
+                    return;
+                } catch (IOException e) {
+                    if (mStopping) {
+                        return;
+                    }
+                    long delay = mBackoff.nextDelay();
+                    log(mSource.getName() + ": " + e.getMessage() + ", retrying in " + delay + " ms");
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        void cancel() {
+            mSource.close();
+            interrupt();
+        }
+    }
+
+    /**
+     * Accept bridges over TCP into the slots the sources don't use.
+     */
+    public void listen(int port, int selectors) {
+        mGateway = new GatewayServer(port, selectors, new GatewayServer.ConnectionListener() {
+            public SampleListener connected(int id, SocketAddress remote) {
+                synchronized (mSlotOwner) {
+                    for (int slot = mSessions.size(); slot < Channel.MAX_DEVICES; slot++) {
+                        if (mSlotOwner[slot] == 0) {
+                            mSlotOwner[slot] = id + 1;
+                            log("bridge " + remote + " in slot " + slot);
+                            return mPipeline.slot(slot);
+                        }
+                    }
+                }
+                log("bridge " + remote + " refused, no free slot");
+                return null;
+            }
+
+            public void disconnected(int id) {
+                synchronized (mSlotOwner) {
+                    for (int slot = 0; slot < Channel.MAX_DEVICES; slot++) {
+                        if (mSlotOwner[slot] == id + 1) {
+                            mSlotOwner[slot] = 0;
+                            mPipeline.getPack().clear(slot);
+                            log("bridge in slot " + slot + " disconnected");
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public void add(TelemetrySource source) {
+        if (mSessions.size() == Channel.MAX_DEVICES) {
+            throw new IllegalArgumentException("at most " + Channel.MAX_DEVICES + " sources");
+        }
+        mSessions.add(new Session(mSessions.size(), source));
+    }
+
+    /**
+     * Send what gets recorded to a fleet server.
+     * @param bytesPerSecond  Upload budget, 0 for unlimited
+     */
+    public void upload(URL url, long bytesPerSecond) {
+        File directory = mPipeline.getRecorder().getDirectory();
+        mUploader = new RideUploader(directory, url, bytesPerSecond);
+    }
+
+    /**
+     * Run until every source has ended (and there is no gateway) or
+     * {@link #stop} is called.
+     * @param statusInterval  ms between status lines, 0 for none
+     */
+    public void run(long statusInterval) throws InterruptedException, IOException {
+        mPipeline.start();
+        if (mGateway != null) {
+            mGateway.start();
+            log("gateway listening on port " + mGateway.getPort());
+        }
+        if (mUploader != null) {
+            mUploader.start();
+        }
+        /* the status line reads the newest values the way the display does */
+        LatestValueMailbox latest = new LatestValueMailbox();
+        mPipeline.getSamples().add(latest);
+        for (Session session : mSessions) {
+            session.start();
+        }
+        float[] values = new float[Channel.COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Float.NaN;
+        }
+        long lastCount = 0;
+        long lastStatus = System.currentTimeMillis();
+        while (isRunning()) {
+            Thread.sleep(ALERT_TICK);
+            long now = System.currentTimeMillis();
+            mPipeline.getAlerts().tick(now);
+            if (statusInterval > 0 && now - lastStatus >= statusInterval && isRunning()) {
+                latest.drain(values);
+                long count = latest.getPublishedCount();
+                status(values, (count - lastCount) * 1000 / (now - lastStatus));
+                lastCount = count;
+                lastStatus = now;
+            }
+        }
+        if (mGateway != null) {
+            mGateway.stop();
+        }
+        long deadline = System.currentTimeMillis() + SESSION_STOP_TIMEOUT;
+        for (Session session : mSessions) {
+            session.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (session.isAlive()) {
+                log(session.mSource.getName() + " still blocked reading, leaving it");
+            }
+        }
+        mPipeline.stop();
+        if (mUploader != null) {
+            mUploader.stop();
+        }
+        summary();
+    }
+
+    private boolean isRunning() {
+        if (mStopping) {
+            return false;
+        }
+        if (mGateway != null) {
+            return true;
+        }
+        for (Session session : mSessions) {
+            if (session.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Stop every source and the gateway; {@link #run} then returns. */
+    public void stop() {
+        mStopping = true;
+        for (Session session : mSessions) {
+            session.cancel();
+        }
+    }
+
+    private void status(float[] values, long samplesPerSecond) {
+        StringBuilder line = new StringBuilder();
+        line.append(samplesPerSecond).append(" samples/s");
+        line.append(String.format("  %.2f V  %.2f A  %.1f mph", values[Channel.VOLTAGE],
+                values[Channel.CURRENT], values[Channel.SPEED]));
+        line.append(String.format("  %.0f%%  %.0f Wh/mi  %.1f mi", values[Channel.STATE_OF_CHARGE],
+                values[Channel.WH_PER_MILE], values[Channel.RANGE]));
+        if (mGateway != null) {
+            line.append("  bridges ").append(mGateway.getConnectionCount());
+            if (mGateway.getAcceptFailureCount() > 0) {
+                line.append(" (").append(mGateway.getAcceptFailureCount()).append(" failed accepts)");
+            }
+        }
+        SegmentRecorder recorder = mPipeline.getRecorder();
+        if (recorder != null) {
+            line.append("  recorded ").append(recorder.getRecordedCount());
+            line.append(" dropped ").append(recorder.getDroppedCount());
+        }
+        if (mUploader != null) {
+            line.append("  uploaded ").append(mUploader.getSampleCount());
+        }
+        log(line.toString());
+    }
+
+    private void summary() {
+        if (mUploader != null) {
+            log(String.format("uploaded %d samples in %d chunks, %.2f bytes/sample, %d failures, chunk ms %s",
+                    mUploader.getSampleCount(), mUploader.getChunkCount(), mUploader.getBytesPerSample(),
+                    mUploader.getFailureCount(), mUploader.getChunkLatency().summary()));
+        }
+        SegmentRecorder recorder = mPipeline.getRecorder();
+        if (recorder == null) {
+            return;
+        }
+        log("recorded " + recorder.getRecordedCount() + " samples in "
+                + recorder.getSegmentCount() + " segments to " + recorder.getDirectory()
+                + ", dropped " + recorder.getDroppedCount());
+        if (recorder.getError() != null) {
+            log("recording failed: " + recorder.getError());
+        }
+    }
+
+    private static void log(String message) {
+        System.err.println(message);
+    }
+
+    static TelemetrySource parseSource(String arg) {
+        if (arg.startsWith("tcp:")) {
+            int colon = arg.lastIndexOf(':');
+            return new TcpSource(arg.substring(4, colon), Integer.parseInt(arg.substring(colon + 1)));
+        }
+        if (arg.startsWith("synthetic:")) {
+            return new SyntheticSource(arg, Double.parseDouble(arg.substring(10)),
+                    SyntheticSource.WAVE_SINE, 60, TelemetryDecoder.PROTOCOL_TEXT);
+        }
+        return new StreamSource(arg);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        File directory = new File("rides");
+        double capacity = 20;
+        double volts = 36;
+        long status = 10 * 1000;
+        int gatewayPort = -1;
+        int selectors = 2;
+        URL upload = null;
+        long uploadRate = 0;
+        List<TelemetrySource> sources = new ArrayList<TelemetrySource>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-d") && i + 1 < args.length) {
+                directory = new File(args[++i]);
+            } else if (args[i].equals("-capacity") && i + 1 < args.length) {
+                capacity = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-volts") && i + 1 < args.length) {
+                volts = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-gateway") && i + 1 < args.length) {
+                gatewayPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-selectors") && i + 1 < args.length) {
+                selectors = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-upload") && i + 1 < args.length) {
+                upload = new URL(args[++i]);
+            } else if (args[i].equals("-rate") && i + 1 < args.length) {
+                uploadRate = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-status") && i + 1 < args.length) {
+                status = (long) (Double.parseDouble(args[++i]) * 1000);
+            } else {
+                sources.add(parseSource(args[i]));
+            }
+        }
+        if (sources.size() == 0 && gatewayPort < 0) {
+            System.err.println("usage: IngestDaemon [-d dir] [-capacity Ah] [-volts V] [-status seconds] "
+                    + "[-gateway port [-selectors n]] [-upload url [-rate bytes/s]] "
+                    + "path|-|tcp:host:port|synthetic:rate...");
+            System.exit(2);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("can't create " + directory);
+            System.exit(1);
+        }
+
+        /* files and pipes arrive far faster than a monitor sends, give the
+           recorder room to keep up instead of dropping */
+        final IngestDaemon daemon = new IngestDaemon(new TelemetryPipeline(directory, capacity, volts,
+                TelemetryPipeline.BULK_RECORDER_QUEUE));
+        for (TelemetrySource source : sources) {
+            daemon.add(source);
+        }
+        if (gatewayPort >= 0) {
+            daemon.listen(gatewayPort, selectors);
+        }
+        if (upload != null) {
+            daemon.upload(upload, uploadRate);
+        }
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                daemon.stop();
+                try {
+                    /* let run() flush the recording before the JVM goes */
+                    main.join(5 * 1000);
+                } catch (InterruptedException e) {
+                    /* exiting anyway */
+                }
+            }
+        });
+        daemon.run(status);
+    }
+}
@@ -27,14 +27,19 @@ public final class R {
         public static final int LinearLayout02=0x7f06000b;
         public static final int TableLayout01=0x7f060009;
         public static final int TableRow03=0x7f06000a;
+        public static final int TableRow04=0x7f060014;
         public static final int TextView05=0x7f06000d;
         public static final int battery=0x7f060010;
         public static final int button_scan=0x7f060006;
         public static final int current_name=0x7f06000c;
         public static final int current_value=0x7f06000f;
+        public static final int efficiency_value=0x7f060016;
         public static final int gpstoggle=0x7f060011;
+        public static final int latency=0x7f060017;
+        public static final int latency_overlay=0x7f060018;
         public static final int new_devices=0x7f060005;
         public static final int paired_devices=0x7f060003;
+        public static final int range_value=0x7f060015;
         public static final int scan=0x7f060012;
         public static final int speedometer=0x7f060008;
         public static final int start_button=0x7f060007;
@@ -65,6 +70,7 @@ public final class R {
         public static final int discoverable=0x7f04001b;
         public static final int email_support=0x7f040007;
         public static final int hello=0x7f040000;
+        public static final int latency=0x7f04001e;
         public static final int main_display_title=0x7f040005;
         public static final int none_found=0x7f040013;
         public static final int none_paired=0x7f040012;
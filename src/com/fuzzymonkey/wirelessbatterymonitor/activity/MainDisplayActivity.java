@@ -19,6 +19,11 @@ package com.fuzzymonkey.wirelessbatterymonitor.activity;
 
 import com.fuzzymonkey.wirelessbatterymonitor.R;
 import com.fuzzymonkey.wirelessbatterymonitor.service.MonitorService;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.AlertEvent;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.FixedFormat;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatencyProbe;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatestValueMailbox;
 import com.fuzzymonkey.wirelessbatterymonitor.view.BatteryView;
 import com.fuzzymonkey.wirelessbatterymonitor.view.SpeedometerView;
 
@@ -36,6 +41,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -61,16 +67,14 @@ public class MainDisplayActivity extends Activity {
     public static final int MESSAGE_DIST = 7;
     public static final int MESSAGE_ZONE = 9;
     public static final int MESSAGE_BATTERY = 10;
-    public static final int MESSAGE_VOLTAGE = 11;
-    public static final int MESSAGE_CURRENT = 12;
-    public static final int MESSAGE_SPEED = 13;
-    public static final int MESSAGE_GPS_SPEED = 14;
-    public static final int MESSAGE_GPS_ACCURACY = 15;
+    public static final int MESSAGE_TELEMETRY = 16; /* mailbox has new values */
+    private static final int MESSAGE_FRAME = 17;    /* time to drain the mailbox */
+    public static final int MESSAGE_ALERT = 18;     /* obj AlertEvent, arg1 1 raised 0 cleared */
+    private static final int MESSAGE_OVERLAY = 19;  /* refresh the latency overlay */
 
-    /* gps modes */
-    public static final int SPEED_MODE_NORMAL = 1;
-    public static final int SPEED_MODE_GPS = 2;
-    public int speed_mode = SPEED_MODE_NORMAL;
+    /* don't redraw the gauges faster than the display refreshes */
+    private static final long FRAME_INTERVAL_MS = 16;
+    private static final long OVERLAY_INTERVAL_MS = 1000;
 
     /* Key names received from the BluetoothChatService Handler */
 
@@ -85,8 +89,11 @@ public class MainDisplayActivity extends Activity {
     private TextView mTitle;
     private TextView mVoltageView;
     private TextView mCurrentView;
+    private TextView mRangeView;
+    private TextView mEfficiencyView;
     private SpeedometerView mSpeedometer;
     private BatteryView mBattery;
+    private TextView mLatencyOverlay;
 
     /* Name of the connected device */
     private String mConnectedDeviceName = null;
@@ -98,6 +105,20 @@ public class MainDisplayActivity extends Activity {
 
     private PowerManager.WakeLock wl;
 
+    /* scratch space for formatting readings, UI thread only */
+    private final char[] mReadingText = new char[FixedFormat.MAX_LENGTH];
+
+    /* newest values, drained from the service's mailbox once per frame */
+    private LatestValueMailbox mMailbox = null;
+    private final float[] mLatest = new float[Channel.COUNT];
+    /* channels that redraw the speedometer or battery */
+    private static final int GAUGE_CHANNELS = 1 << Channel.FUSED_SPEED
+            | 1 << Channel.VOLTAGE | 1 << Channel.STATE_OF_CHARGE;
+    private long mLastFrameTime = 0;
+    private long mFramesDrawn = 0;
+    private LatencyProbe mProbe = null;
+    private boolean mVisible = false;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -116,8 +137,11 @@ public class MainDisplayActivity extends Activity {
         mSpeedometer = (SpeedometerView) findViewById(R.id.speedometer);
         mVoltageView = (TextView) findViewById(R.id.voltage_value);
         mCurrentView = (TextView) findViewById(R.id.current_value);
+        mRangeView = (TextView) findViewById(R.id.range_value);
+        mEfficiencyView = (TextView) findViewById(R.id.efficiency_value);
 
         mBattery = (BatteryView) findViewById(R.id.battery);
+        mLatencyOverlay = (TextView) findViewById(R.id.latency_overlay);
 
         /* Set up the custom title */
         mTitle = (TextView) findViewById(R.id.title_left_text);
@@ -138,16 +162,13 @@ public class MainDisplayActivity extends Activity {
                     if (mMonitorService != null) {
                         if(mMonitorService.turnOnGps() == 0) {
                             gpstoggle.setChecked(false);
-                            speed_mode = SPEED_MODE_NORMAL;
                             Toast.makeText(MainDisplayActivity.this, "GPS is not available", Toast.LENGTH_SHORT).show();
                         } else {
-                            speed_mode = SPEED_MODE_GPS;
-                            Toast.makeText(MainDisplayActivity.this, "using GPS for speed", Toast.LENGTH_SHORT).show();
+                            Toast.makeText(MainDisplayActivity.this, "adding GPS to the wheel speed", Toast.LENGTH_SHORT).show();
                         }
                     }
                 } else {
                     mMonitorService.turnOffGps();
-                    speed_mode = SPEED_MODE_NORMAL;
                     Toast.makeText(MainDisplayActivity.this, "using speed sensor for speed", Toast.LENGTH_SHORT).show();
                 }
             }
@@ -208,6 +229,9 @@ public class MainDisplayActivity extends Activity {
                cast its IBinder to a concrete class and directly access it. */
             /* TODO: see if this needs to be the LocalBinder */
             mMonitorService = ((MonitorService.LocalBinder)service).getService();
+            mMailbox = mMonitorService.getMailbox();
+            setLatencyProbe(mMonitorService.getLatencyProbe());
+            mMonitorService.setDisplayVisible(mVisible);
             mMonitorService.setHandler(mHandler);
             mMonitorService.sendUpdate();
         }
@@ -218,6 +242,8 @@ public class MainDisplayActivity extends Activity {
                Because it is running in our same process, we should never
                see this happen. */
             mMonitorService = null;
+            mMailbox = null;
+            setLatencyProbe(null);
             Toast.makeText(MainDisplayActivity.this, "monitor service disconnected",
                     Toast.LENGTH_SHORT).show();
         }
@@ -304,18 +330,16 @@ public class MainDisplayActivity extends Activity {
                     break;
                 }
                 break;
-            case MESSAGE_SPEED:
-                String speed = msg.getData().getString(TOAST);
-                if (speed_mode == SPEED_MODE_NORMAL)
-                    mSpeedometer.setValue(Float.valueOf(speed).floatValue());
-                break;
-            case MESSAGE_VOLTAGE:
-                String newVoltage = msg.getData().getString(TOAST);
-                mVoltageView.setText(newVoltage);
-                mBattery.setValue(Double.valueOf(newVoltage.trim()).doubleValue());
+            case MESSAGE_TELEMETRY:
+                /* pace redraws: drain at the next frame slot, not now */
+                if (!hasMessages(MESSAGE_FRAME)) {
+                    sendEmptyMessageAtTime(MESSAGE_FRAME, Math.max(SystemClock.uptimeMillis(),
+                            mLastFrameTime + FRAME_INTERVAL_MS));
+                }
                 break;
-            case MESSAGE_CURRENT:
-                mCurrentView.setText((msg.getData().getString(TOAST)));
+            case MESSAGE_FRAME:
+                mLastFrameTime = SystemClock.uptimeMillis();
+                drawFrame();
                 break;
             case MESSAGE_DEVICE_NAME:
                 /* save the connected device's name */
@@ -324,16 +348,86 @@ public class MainDisplayActivity extends Activity {
             case MESSAGE_TOAST:
                 Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST), Toast.LENGTH_SHORT).show();
                 break;
-            case MESSAGE_GPS_SPEED:
-                Float gpsSpeed = (Float) msg.obj;
-                if (speed_mode == SPEED_MODE_GPS) {
-                    mSpeedometer.setValue(gpsSpeed.floatValue() * (float)2.23693629);
+            case MESSAGE_ALERT:
+                showAlert((AlertEvent) msg.obj, msg.arg1 != 0);
+                break;
+            case MESSAGE_OVERLAY:
+                if (mLatencyOverlay.getVisibility() == View.VISIBLE) {
+                    mLatencyOverlay.setText(mProbe == null ? "no service" : mProbe.summary());
+                    sendEmptyMessageDelayed(MESSAGE_OVERLAY, OVERLAY_INTERVAL_MS);
                 }
                 break;
             }
         }
     };
 
+    private void showAlert(AlertEvent alert, boolean raised) {
+        if (mMonitorService != null) {
+            mMonitorService.getAlertLatency().record((System.nanoTime() - alert.getChangedNanos()) / 1000);
+        }
+        if (raised) {
+            Toast.makeText(getApplicationContext(), alert.getMessage(),
+                    alert.isCritical() ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(getApplicationContext(), alert.getMessage() + " cleared", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void setLatencyProbe(LatencyProbe probe) {
+        mProbe = probe;
+        mSpeedometer.setLatencyProbe(probe);
+        mBattery.setLatencyProbe(probe);
+    }
+
+    /**
+     * Push whatever changed since the last frame into the views.
+     */
+    private void drawFrame() {
+        if (mMailbox == null) {
+            return;
+        }
+        int updated = mMailbox.drain(mLatest);
+        if (updated == 0) {
+            return;
+        }
+
+        /* a gauge will redraw for this frame; its onDraw closes the timing */
+        if (mProbe != null && (updated & GAUGE_CHANNELS) != 0) {
+            mProbe.dispatched();
+        }
+        /* wheel and GPS speed, fused by the service; see SpeedFusion */
+        if ((updated & (1 << Channel.FUSED_SPEED)) != 0) {
+            mSpeedometer.setValue(mLatest[Channel.FUSED_SPEED]);
+        }
+        if ((updated & (1 << Channel.VOLTAGE)) != 0) {
+            setReading(mVoltageView, mLatest[Channel.VOLTAGE]);
+            mBattery.setValue(mLatest[Channel.VOLTAGE]);
+        }
+        if ((updated & (1 << Channel.CURRENT)) != 0) {
+            setReading(mCurrentView, mLatest[Channel.CURRENT]);
+        }
+        if ((updated & (1 << Channel.STATE_OF_CHARGE)) != 0) {
+            mBattery.setStateOfCharge(mLatest[Channel.STATE_OF_CHARGE]);
+        }
+        if ((updated & (1 << Channel.RANGE)) != 0) {
+            setReading(mRangeView, mLatest[Channel.RANGE], 1);
+        }
+        if ((updated & (1 << Channel.WH_PER_MILE)) != 0) {
+            setReading(mEfficiencyView, mLatest[Channel.WH_PER_MILE], 0);
+        }
+        mFramesDrawn++;
+    }
+
+    /* show a reading without building a String for it */
+    private void setReading(TextView view, float value) {
+        setReading(view, value, 2);
+    }
+
+    private void setReading(TextView view, float value, int decimals) {
+        int length = FixedFormat.format(value, decimals, mReadingText, 0);
+        view.setText(mReadingText, 0, length);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -358,6 +452,14 @@ public class MainDisplayActivity extends Activity {
             AlertDialog alert = builder.create();
             alert.show();
 
+            return true;
+        case R.id.latency:
+            if (mLatencyOverlay.getVisibility() == View.VISIBLE) {
+                mLatencyOverlay.setVisibility(View.GONE);
+            } else {
+                mLatencyOverlay.setVisibility(View.VISIBLE);
+                mHandler.sendEmptyMessage(MESSAGE_OVERLAY);
+            }
             return true;
         case R.id.stop_activity:
             if (mMonitorService != null) {
@@ -381,11 +483,24 @@ public class MainDisplayActivity extends Activity {
     protected void onPause() {
         super.onPause();
         wl.release();
+        mVisible = false;
+        if (mMonitorService != null) {
+            mMonitorService.setDisplayVisible(false);
+        }
+        if (mMailbox != null) {
+            Log.i(TAG, "display: " + mMailbox.getPublishedCount() + " samples, "
+                    + mMailbox.getCoalescedCount() + " coalesced, "
+                    + mFramesDrawn + " frames drawn");
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         wl.acquire();
+        mVisible = true;
+        if (mMonitorService != null) {
+            mMonitorService.setDisplayVisible(true);
+        }
     }
 }
@@ -0,0 +1,155 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatencyProbe;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryDecoder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetrySource;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * A monitor over an RFCOMM serial link.  Each open makes a fresh socket,
+ * trying the strategy that worked last first: the serial port service
+ * record, or the reflective channel 1 socket some RN modules need.
+ */
+public class BluetoothSource implements TelemetrySource {
+    private static final String TAG = "FUZZYMONKEY BluetoothSource";
+
+    /* Serial port profile UUID */
+    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    public static final int SOCKET_SERVICE_RECORD = 0;
+    public static final int SOCKET_CHANNEL_1 = 1;
+
+    private final BluetoothDevice mDevice;
+    private final LatencyProbe mProbe;
+    private int mStrategy;
+    private volatile BluetoothSocket mSocket = null;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param device    The paired monitor
+     * @param strategy  SOCKET_ constant to try first
+     * @param probe     Stamps socket reads and parses, null for none
+     */
+    public BluetoothSource(BluetoothDevice device, int strategy, LatencyProbe probe) {
+        mDevice = device;
+        mStrategy = strategy;
+        mProbe = probe;
+    }
+
+    public String getId() {
+        return mDevice.getAddress();
+    }
+
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    /** @return the strategy the last successful open used */
+    public int getStrategy() {
+        return mStrategy;
+    }
+
+    public void open() throws IOException {
+        /* Always cancel discovery because it will slow down a connection */
+        BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
+
+        IOException failure = new IOException("no socket for " + getName());
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int strategy = attempt == 0 ? mStrategy : 1 - mStrategy;
+            BluetoothSocket socket;
+            try {
+                if (strategy == SOCKET_SERVICE_RECORD) {
+                    socket = mDevice.createRfcommSocketToServiceRecord(MY_UUID);
+                } else {
+                    Method m = mDevice.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
+                    socket = (BluetoothSocket) m.invoke(mDevice, 1);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "create() failed", e);
+                continue;
+            }
+            mSocket = socket;
+            if (mClosed) {
+                close(socket);
+                break;
+            }
+            try {
+                /* This is a blocking call and will only return on a
+                   successful connection or an exception */
+                socket.connect();
+                mStrategy = strategy;
+                return;
+            } catch (IOException e) {
+                close(socket);
+                failure = e;
+                if (mClosed) {
+                    break;
+                }
+            }
+        }
+        throw failure;
+    }
+
+    public void run(SampleListener listener) throws IOException {
+        BluetoothSocket socket = mSocket;
+        /* parse straight from the socket, text or packed binary,
+           see TelemetryDecoder */
+        LatencyProbe.Tap tap = mProbe == null ? null : mProbe.tap(listener);
+        TelemetryDecoder decoder = new TelemetryDecoder(tap == null ? listener : tap);
+        try {
+            InputStream in = socket.getInputStream();
+            decoder.readFrom(tap == null ? in : tap.stamp(in));
+        } finally {
+            Log.i(TAG, "END " + getName() + " protocol " + decoder.getProtocol()
+                    + ", crc errors " + decoder.getBinaryParser().getCrcErrorCount()
+                    + ", bad lines " + decoder.getTextParser().getBadLineCount());
+            close(socket);
+        }
+        /* a serial link has no natural end, it dropped */
+        throw new IOException(getName() + " closed the connection");
+    }
+
+    /* closing the socket unblocks connect() or the read */
+    public void close() {
+        mClosed = true;
+        BluetoothSocket socket = mSocket;
+        if (socket != null) {
+            close(socket);
+        }
+    }
+
+    private static void close(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Log.e(TAG, "close() of socket failed", e);
+        }
+    }
+}
@@ -17,17 +17,49 @@
 
 package com.fuzzymonkey.wirelessbatterymonitor.service;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.reflect.Method;
-import java.util.Scanner;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.fuzzymonkey.wirelessbatterymonitor.R;
 import com.fuzzymonkey.wirelessbatterymonitor.activity.MainDisplayActivity;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.AlertEngine;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.AlertEvent;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.AlertRule;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.Channel;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.ChannelFilters;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.EmaFilter;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.GpsPolicy;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatencyHistogram;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatencyProbe;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatestValueMailbox;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.MedianFilter;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.PackAggregator;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.RangeEstimator;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.ReconnectBackoff;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.ReplaySource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.RideUploader;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.RollupEngine;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleDispatcher;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SampleListener;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SegmentRecorder;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SpikeFilter;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SpeedFusion;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.StateOfChargeEstimator;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.SyntheticSource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryHistory;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetryPipeline;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TelemetrySource;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.TripLedger;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -35,9 +67,9 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -47,31 +79,54 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.Toast;
 
 public class MonitorService extends Service {
     private NotificationManager mNM;
 
     private static final String TAG = "FUZZYMONKEY MonitorService";
 
-    /* Unique UUID for this application */
-    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
     /* Member fields */
     private BluetoothAdapter mAdapter;
     private Handler mHandler = null;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
     private int mState;
-    private String mDeviceName = null;
+
+    /* one session per connected monitor, indexed by its channel slot; the
+       sessions share a fixed pool of reader threads, one per slot, which
+       also runs their delayed reconnects, plus one for the alert clock */
+    private final DeviceSession[] mSessions = new DeviceSession[Channel.MAX_DEVICES];
+    private ScheduledExecutorService mSessionPool;
+
+    /* reconnecting, see ReconnectBackoff */
+    private static final long RECONNECT_BASE = 500;       /* ms window of the first retry */
+    private static final long RECONNECT_MAX = 30 * 1000;  /* ms, longest wait between tries */
+    private static final int MAX_FIRST_ATTEMPTS = 5;      /* give up on a device never reached */
+
+    /* socket strategy that last worked, per device address, kept across
+       restarts so a module that needs the reflective socket doesn't pay
+       for a failed service record lookup every time */
+    private static final String CONNECTION_PREFS = "connections";
+    private final HashMap<String, Integer> mSocketStrategy = new HashMap<String, Integer>();
+
+    /* how quickly links come up and data flows, ms */
+    private final LatencyHistogram mConnectLatency = new LatencyHistogram();
+    private final LatencyHistogram mFirstSampleLatency = new LatencyHistogram();
+    private final LatencyHistogram mDataGaps = new LatencyHistogram();
+
+    /* alerts skip the queue of display updates when critical; how long
+       from the sample reaching the engine to the UI handling it, us */
+    private static final long ALERT_TICK = 1000; /* ms between link checks */
+    private final LatencyHistogram mAlertLatency = new LatencyHistogram();
+
+    /* socket read to drawn gauge, stamped by BluetoothSource and the UI */
+    private final LatencyProbe mProbe = new LatencyProbe();
 
     /* Constants that indicate the current connection state */
     public static final int STATE_NONE = 0;       /* we're doing nothing */
     public static final int STATE_LISTEN = 1;     /* now listening for incoming connections */
     public static final int STATE_CONNECTING = 2; /* now initiating an outgoing connection */
     public static final int STATE_CONNECTED = 3;  /* now connected to a remote device */
-    private int connectTries = 0;
     private static final boolean D = true;
 
     /* gps */
@@ -80,10 +135,57 @@ public class MonitorService extends Service {
     protected static final int STATE_OUT_OF_SERVICE = 3;
     protected static final int STATE_TEMPORARILY_UNAVAILABLE = 4;
     protected static final int STATE_OFF = 5;
+    private static final float MPS_TO_MPH = 2.23693629f;
     private LocationManager locationManager;
     private LocationUpdateHandler mLocationListener = null;
     Location mLastLocation = null;
 
+    /* fix rate follows GpsPolicy; location requests have to be made on a
+       looper thread, so the policy is checked on the main one */
+    private static final long GPS_POLICY_INTERVAL = 5 * 1000;
+    private final GpsPolicy mGpsPolicy = new GpsPolicy();
+    private final Handler mMainHandler = new Handler();
+    private int mGpsMode = -1; /* -1 while GPS is off */
+
+    /* telemetry: every parsed sample fans out from mSamples, see
+       TelemetryPipeline; the display mailbox listens last, behind its
+       own filters */
+    private static final double PACK_NOMINAL_VOLTS = 36;
+    /* usable capacity, amp hours, from the pack preferences so a bigger or
+       worn pack doesn't need a rebuild; the stock pack is 20 Ah */
+    private static final String PACK_PREFS = "pack";
+    private static final String PACK_CAPACITY_AH = "capacity_ah";
+    private static final float DEFAULT_PACK_CAPACITY_AH = 20;
+    private static final String RIDE_DIRECTORY = "rides";
+    /* current filter chain, see addCurrentFilters() */
+    private static final float CURRENT_MAX_STEP = 40;   /* amps between readings */
+    private static final int CURRENT_SPIKE_CONFIRM = 2; /* wild readings held back before a step is believed */
+    private static final int CURRENT_MEDIAN = 5;        /* readings */
+    private static final long CURRENT_TAU = 300;        /* ms */
+    private TelemetryPipeline mPipeline;
+    private SampleDispatcher mSamples;
+    private final LatestValueMailbox mMailbox = new LatestValueMailbox();
+    /* smoothing for the display only; everything else sees raw readings */
+    private final ChannelFilters mDisplayFilters = new ChannelFilters(mMailbox);
+
+    /* odometer and energy totals; checkpointed often enough that a
+       START_STICKY restart after being killed loses a few seconds at most */
+    private static final String TRIP_FILE = "trips";
+    private static final long TRIP_CHECKPOINT_INTERVAL = 5 * 1000;
+    /* ms onDestroy() waits for sessions to deliver their last samples
+       before the final checkpoint; it runs on the main thread */
+    private static final long SESSION_STOP_TIMEOUT = 1000;
+    private TripLedger mTrips;
+
+    /* recorded rides go to the fleet server when a url is set; a trickle
+       while riding so the radio is free for the monitors, flat out when
+       parked */
+    private static final String UPLOAD_PREFS = "upload";
+    private static final String UPLOAD_URL = "url";
+    private static final long UPLOAD_RATE_RIDING = 2 * 1024;  /* bytes/s */
+    private static final long UPLOAD_RATE_PARKED = 0;         /* unlimited */
+    private RideUploader mUploader = null;
+
     /**
      * Class for clients to access.  Because we know this service always
      * runs in the same process as its clients, we don't need to deal with
@@ -101,6 +203,28 @@ public class MonitorService extends Service {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mNM = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+        mSessionPool = Executors.newScheduledThreadPool(Channel.MAX_DEVICES + 1, new ThreadFactory() {
+            private int mCount = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, "DeviceSession-" + mCount++);
+            }
+        });
+
+        mPipeline = new TelemetryPipeline(getDir(RIDE_DIRECTORY, MODE_PRIVATE),
+                getPackCapacity(), PACK_NOMINAL_VOLTS);
+        mPipeline.start();
+        mSamples = mPipeline.getSamples();
+        addCurrentFilters();
+        mTrips = new TripLedger(new File(getFilesDir(), TRIP_FILE), mPipeline.getRange());
+        mSamples.add(mGpsPolicy);
+        mSamples.add(mDisplayFilters);
+        mMailbox.setWakeup(mDisplayWakeup);
+        mPipeline.getAlerts().setListener(mAlertListener);
+        mSessionPool.scheduleAtFixedRate(mAlertTick, ALERT_TICK, ALERT_TICK, TimeUnit.MILLISECONDS);
+        mSessionPool.scheduleWithFixedDelay(mTripCheckpoint, TRIP_CHECKPOINT_INTERVAL,
+                TRIP_CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+        startUploader();
 
         /* Display a notification about us starting.  We put an icon in the status bar. */
         showNotification();
@@ -109,7 +233,7 @@ public class MonitorService extends Service {
            Get a set of currently paired devices */
         Set<BluetoothDevice> pairedDevices = mAdapter.getBondedDevices();
 
-        /* If there are paired devices, add each one to the ArrayAdapter */
+        /* connect every monitor we know, each gets its own session */
         if (pairedDevices.size() > 0) {
             for (BluetoothDevice device : pairedDevices) {
                 if (device.getName().startsWith("RN") == true) {
@@ -136,8 +260,8 @@ public class MonitorService extends Service {
         return START_STICKY;
     }
 
-    public void sendUpdate() {
-        sendDeviceName(mDeviceName);
+    public synchronized void sendUpdate() {
+        sendDeviceName(getDeviceNames());
         setState(mState);
     }
 
@@ -149,11 +273,79 @@ public class MonitorService extends Service {
 
         /* kill our threads since we are going away */
         stop();
+        turnOffGps();
+        mSessionPool.shutdown();
+        try {
+            if (!mSessionPool.awaitTermination(SESSION_STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "sessions still running, trip totals may miss their last samples");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "connect ms " + mConnectLatency.summary()
+                + "; first sample ms " + mFirstSampleLatency.summary()
+                + "; data gaps ms " + mDataGaps.summary());
+        Log.i(TAG, mPipeline.getAlerts().getRaisedCount() + " alerts; delivery us "
+                + mAlertLatency.summary());
+        Log.i(TAG, "latency us\n" + mProbe.summary());
+        Log.i(TAG, mGpsPolicy.summary(System.currentTimeMillis()));
+
+        /* sources are stopped, so the totals are final */
+        mTripCheckpoint.run();
+        Log.i(TAG, mTrips.summary());
+
+        /* flush the ride to disk */
+        mPipeline.stop();
+        if (mUploader != null) {
+            mUploader.stop();
+            Log.i(TAG, "uploaded " + mUploader.getSampleCount() + " samples in "
+                    + mUploader.getChunkCount() + " chunks, "
+                    + String.format("%.2f", mUploader.getBytesPerSample()) + " bytes/sample, "
+                    + mUploader.getFailureCount() + " failures; chunk ms "
+                    + mUploader.getChunkLatency().summary());
+        }
+        SegmentRecorder recorder = mPipeline.getRecorder();
+        Log.i(TAG, "recorded " + recorder.getRecordedCount() + " samples in "
+                + recorder.getSegmentCount() + " segments, dropped "
+                + recorder.getDroppedCount());
+        if (recorder.getError() != null) {
+            Log.e(TAG, "recording failed", recorder.getError());
+        }
 
         /* Tell the user we stopped. */
         alert("monitor service stopped");
     }
 
+    /**
+     * adb shell dumpsys activity service MonitorService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("state " + mState);
+        for (int i = 0; i < mSessions.length; i++) {
+            DeviceSession session = mSessions[i];
+            if (session != null) {
+                writer.println("slot " + i + " " + session.mmName + " state " + session.mmState
+                        + " samples " + session.mmSamples);
+            }
+        }
+        writer.println("latency, us:");
+        writer.println(mProbe.summary());
+        writer.println("connect ms " + mConnectLatency.summary());
+        writer.println("first sample ms " + mFirstSampleLatency.summary());
+        writer.println("data gaps ms " + mDataGaps.summary());
+        writer.println(mGpsPolicy.summary(System.currentTimeMillis()));
+        writer.println(mTrips.summary());
+        writer.println("alerts " + mPipeline.getAlerts().getRaisedCount()
+                + ", delivery us " + mAlertLatency.summary());
+        SegmentRecorder recorder = mPipeline.getRecorder();
+        writer.println("recorded " + recorder.getRecordedCount() + " dropped " + recorder.getDroppedCount());
+        if (mUploader != null) {
+            writer.println("uploaded " + mUploader.getSampleCount() + " samples, chunk ms "
+                    + mUploader.getChunkLatency().summary());
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -184,62 +376,171 @@ public class MonitorService extends Service {
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start a session with a device, alongside any already running.  If
+     * this device already has one it is restarted in the same slot.
      * @param device  The BluetoothDevice to connect
      */
     public synchronized void connect(BluetoothDevice device) {
         if (D) Log.d(TAG, "connect to: " + device);
+        connect(new BluetoothSource(device, getSocketStrategy(device.getAddress()), mProbe));
+    }
 
-        /* Cancel any thread attempting to make a connection */
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
+    /**
+     * Start a session reading any source, e.g. a {@link SyntheticSource}
+     * to demo or load the pipeline, or a {@link ReplaySource} of a
+     * recorded ride.  A source with the same id is replaced.
+     */
+    public synchronized void connect(TelemetrySource source) {
+        int slot = -1;
+        for (int i = 0; i < mSessions.length; i++) {
+            if (mSessions[i] != null && mSessions[i].mmSource.getId().equals(source.getId())) {
+                mSessions[i].cancel();
+                slot = i;
+                break;
             }
         }
-
-        /* Cancel any thread currently running a connection */
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        for (int i = 0; slot < 0 && i < mSessions.length; i++) {
+            if (mSessions[i] == null) {
+                slot = i;
+            }
+        }
+        if (slot < 0) {
+            sendToast("Already monitoring " + Channel.MAX_DEVICES + " devices");
+            return;
         }
 
-        /* Start the thread to connect with the given device */
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+        DeviceSession session = new DeviceSession(slot, source);
+        mSessions[slot] = session;
+        mSessionPool.execute(session);
+        updateState();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * A session's socket is up and it is reading.
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    private synchronized void sessionConnected(DeviceSession session) {
+        if (mSessions[session.mmSlot] != session) {
+            return; /* replaced or stopped while connecting */
+        }
         if (D) {
-            Log.d(TAG, "connected");
+            Log.d(TAG, "connected " + session.mmName + " in slot " + session.mmSlot);
+        }
+        sendDeviceName(getDeviceNames());
+        updateState();
+    }
+
+    /**
+     * A session attempt is finishing, because it failed to connect, lost
+     * its link or its source ran out.  Unless the source is done, schedules
+     * the next attempt after a backoff delay; only a device that has never
+     * answered is eventually given up on.  Either of those frees its slot.
+     */
+    private synchronized void sessionEnded(DeviceSession session, boolean wasConnected,
+            boolean finished) {
+        if (mSessions[session.mmSlot] != session) {
+            return; /* cancelled */
+        }
+        mPipeline.getPack().clear(session.mmSlot);
+        session.mmState = STATE_CONNECTING;
+        if (finished) {
+            mSessions[session.mmSlot] = null;
+            /* ran out on its own, the silence is expected */
+            mPipeline.getAlerts().reset(Channel.device(session.mmSlot, Channel.VOLTAGE));
+        } else if (!session.mmEverConnected && session.mmBackoff.getAttempts() >= MAX_FIRST_ATTEMPTS) {
+            mSessions[session.mmSlot] = null;
+            connectionFailed(session.mmName);
+        } else {
+            if (wasConnected) {
+                connectionLost(session.mmName);
+            }
+            long delay = session.mmBackoff.nextDelay();
+            if (D) {
+                Log.d(TAG, "reconnect " + session.mmName + " in " + delay + " ms");
+            }
+            mSessionPool.schedule(session, delay, TimeUnit.MILLISECONDS);
+        }
+        sendDeviceName(getDeviceNames());
+        updateState();
+    }
+
+    /* the socket strategy to try first for a device */
+    private synchronized int getSocketStrategy(String address) {
+        Integer strategy = mSocketStrategy.get(address);
+        if (strategy == null) {
+            strategy = getSharedPreferences(CONNECTION_PREFS, MODE_PRIVATE).getInt(address,
+                    BluetoothSource.SOCKET_SERVICE_RECORD);
+            mSocketStrategy.put(address, strategy);
         }
+        return strategy;
+    }
 
-        /* Cancel the thread that completed the connection */
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    private synchronized void setSocketStrategy(String address, int strategy) {
+        Integer old = mSocketStrategy.put(address, strategy);
+        if (old == null || old != strategy) {
+            getSharedPreferences(CONNECTION_PREFS, MODE_PRIVATE).edit()
+                    .putInt(address, strategy).commit();
         }
+    }
 
-        /* Cancel any thread currently running a connection */
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Service state is the best of the sessions': connected if any device
+     * is, connecting if any is trying.
+     */
+    private void updateState() {
+        int state = STATE_LISTEN;
+        for (int i = 0; i < mSessions.length; i++) {
+            if (mSessions[i] != null) {
+                state = Math.max(state, mSessions[i].mmState);
+            }
         }
+        if (state != mState) {
+            setState(state);
+            if (mUploader != null) {
+                mUploader.setRateLimit(state == STATE_CONNECTED ? UPLOAD_RATE_RIDING : UPLOAD_RATE_PARKED);
+            }
+        }
+    }
+
+    private float getPackCapacity() {
+        float capacityAh = getSharedPreferences(PACK_PREFS, MODE_PRIVATE).getFloat(PACK_CAPACITY_AH,
+                DEFAULT_PACK_CAPACITY_AH);
+        if (!(capacityAh > 0)) {
+            Log.e(TAG, "bad pack capacity " + capacityAh + ", using " + DEFAULT_PACK_CAPACITY_AH);
+            return DEFAULT_PACK_CAPACITY_AH;
+        }
+        return capacityAh;
+    }
 
-        /* Start the thread to manage the connection and perform transmissions */
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+    private void startUploader() {
+        String url = getSharedPreferences(UPLOAD_PREFS, MODE_PRIVATE).getString(UPLOAD_URL, null);
+        if (url == null || url.length() == 0) {
+            return;
+        }
+        try {
+            mUploader = new RideUploader(mPipeline.getRecorder().getDirectory(), new URL(url),
+                    UPLOAD_RATE_PARKED);
+            mUploader.start();
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "bad upload url " + url, e);
+        }
+    }
 
-        mDeviceName = device.getName();
-        sendDeviceName(mDeviceName);
+    public RideUploader getUploader() {
+        return mUploader;
+    }
 
-        setState(STATE_CONNECTED);
+    /* names of the connected devices, for the title bar */
+    private String getDeviceNames() {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < mSessions.length; i++) {
+            if (mSessions[i] != null && mSessions[i].mmState == STATE_CONNECTED) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(mSessions[i].mmName);
+            }
+        }
+        return names.length() > 0 ? names.toString() : null;
     }
 
     private void sendDeviceName(String name) {
@@ -253,21 +554,31 @@ public class MonitorService extends Service {
         }
     }
 
+    private void sendToast(String text) {
+        if (mHandler != null) {
+            Message msg = mHandler.obtainMessage(MainDisplayActivity.MESSAGE_TOAST);
+            Bundle bundle = new Bundle();
+            bundle.putString(MainDisplayActivity.TOAST, text);
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+    }
+
     /**
-     * Stop all threads
+     * Stop all sessions
      */
     public synchronized void stop() {
         if (D) {
             Log.d(TAG, "stop");
         }
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        for (int i = 0; i < mSessions.length; i++) {
+            if (mSessions[i] != null) {
+                mSessions[i].cancel();
+                mSessions[i] = null;
+                mPipeline.getPack().clear(i);
+            }
         }
+        mPipeline.getAlerts().reset();
         setState(STATE_NONE);
         /* no since in sending updates if we don't have anything connected */
         mHandler = null;
@@ -276,192 +587,214 @@ public class MonitorService extends Service {
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
-        setState(STATE_LISTEN);
-
-        /* Send a failure message back to the Activity */
-        Log.v(TAG, "connectionFailed()");
-        if (mHandler != null) {
-            Message msg = mHandler.obtainMessage(MainDisplayActivity.MESSAGE_TOAST);
-            Bundle bundle = new Bundle();
-            bundle.putString(MainDisplayActivity.TOAST, "Unable to connect device");
-            msg.setData(bundle);
-            mHandler.sendMessage(msg);
-        }
+    private void connectionFailed(String name) {
+        Log.v(TAG, "connectionFailed() " + name);
+        sendToast("Unable to connect " + name);
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
-        setState(STATE_LISTEN);
+    private void connectionLost(String name) {
+        Log.v(TAG, "connectionLost() " + name);
+        sendToast(name + " connection was lost, reconnecting");
+    }
 
-        /* Send a failure message back to the Activity */
-        Log.v(TAG, "connectionFailed()");
-        if (mHandler != null) {
-            Message msg = mHandler.obtainMessage(MainDisplayActivity.MESSAGE_TOAST);
-            Bundle bundle = new Bundle();
-            bundle.putString(MainDisplayActivity.TOAST, "Device connection was lost");
-            msg.setData(bundle);
-            mHandler.sendMessage(msg);
-        }
+    /**
+     * The name of the device in a slot, or null if the slot is free.
+     */
+    public synchronized String getDeviceName(int slot) {
+        return mSessions[slot] == null ? null : mSessions[slot].mmName;
     }
 
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * STATE_CONNECTING or STATE_CONNECTED for a busy slot, STATE_NONE for
+     * a free one.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    public synchronized int getDeviceState(int slot) {
+        return mSessions[slot] == null ? STATE_NONE : mSessions[slot].mmState;
+    }
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+    /**
+     * Time from starting a socket connect to it succeeding, ms.
+     */
+    public LatencyHistogram getConnectLatency() {
+        return mConnectLatency;
+    }
 
-            /* Get a BluetoothSocket for a connection with the given BluetoothDevice */
-            try {
-                if (connectTries == 0) {
-                    tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-                } else {
-                    Method m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-                    tmp = (BluetoothSocket) m.invoke(device, 1);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "create() failed", e);
-            }
-            mmSocket = tmp;
+    /**
+     * Time from a socket connecting to its first decoded sample, ms.
+     */
+    public LatencyHistogram getFirstSampleLatency() {
+        return mFirstSampleLatency;
+    }
+
+    /**
+     * How long each device's data stopped for when its link dropped: last
+     * sample before the drop to first sample after the reconnect, ms.
+     */
+    public LatencyHistogram getDataGaps() {
+        return mDataGaps;
+    }
+
+    /**
+     * Samples received from the device in a slot this session, 0 if free.
+     */
+    public synchronized long getDeviceSampleCount(int slot) {
+        return mSessions[slot] == null ? 0 : mSessions[slot].mmSamples;
+    }
+
+    /**
+     * One monitor, or anything else that is a {@link TelemetrySource}.
+     * Each run opens the source and reads it until the link drops, on a
+     * thread borrowed from mSessionPool; sessionEnded then schedules the
+     * next run until the session is cancelled or the source runs out.
+     * Its readings go out on its slot's own channels, which the
+     * pipeline's PackAggregator turns into the pack totals.
+     */
+    private class DeviceSession implements Runnable, SampleListener {
+        private final int mmSlot;
+        private final TelemetrySource mmSource;
+        private final String mmName;
+        private volatile int mmState = STATE_CONNECTING;
+        private volatile boolean mmCancelled = false;
+        private volatile long mmSamples = 0; /* only the session thread writes it */
+        private final ReconnectBackoff mmBackoff = new ReconnectBackoff(RECONNECT_BASE, RECONNECT_MAX);
+        private boolean mmEverConnected = false;
+
+        /* session thread only */
+        private long mmConnectedAt;
+        private boolean mmAwaitingSample;
+        private long mmLastTimestamp = 0; /* of the newest sample, 0 before any */
+
+        public DeviceSession(int slot, TelemetrySource source) {
+            mmSlot = slot;
+            mmSource = source;
+            mmName = source.getName();
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-
-            /* Always cancel discovery because it will slow down a connection */
-            mAdapter.cancelDiscovery();
+            if (mmCancelled) {
+                return;
+            }
+            Log.i(TAG, "BEGIN session " + mmName + " slot " + mmSlot);
 
-            /* Make a connection to the BluetoothSocket */
             try {
-                /* This is a blocking call and will only return on a
-                   successful connection or an exception */
-                mmSocket.connect();
+                long start = SystemClock.elapsedRealtime();
+                mmSource.open();
+                mmConnectedAt = SystemClock.elapsedRealtime();
+                mConnectLatency.record(mmConnectedAt - start);
             } catch (IOException e) {
-                /* Close the socket */
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                /* this is our first failure */
-                if (0 == connectTries) {
-                    connectTries++;
-                    connect(mmDevice);
-                } else {
-                    connectionFailed();
-                }
+                Log.i(TAG, "open " + mmName + " failed: " + e.getMessage());
+                sessionEnded(this, false, false);
                 return;
             }
+            if (mmSource instanceof BluetoothSource) {
+                setSocketStrategy(mmSource.getId(), ((BluetoothSource) mmSource).getStrategy());
+            }
+            mmState = STATE_CONNECTED;
+            mmEverConnected = true;
+            mmAwaitingSample = true;
+            sessionConnected(this);
 
-            /* Reset the ConnectThread because we're done */
-            synchronized (MonitorService.this) {
-                mConnectThread = null;
+            boolean finished = false;
+            try {
+                mmSource.run(this);
+                finished = true;
+            } catch (IOException e) {
+                //Log.e(TAG, "disconnected", e);
             }
+            Log.i(TAG, "END session " + mmName + (finished ? ", source finished" : ""));
+            sessionEnded(this, true, finished);
+        }
 
-            /* Start the connected thread */
-            connected(mmSocket, mmDevice);
+        public void onSample(int channel, long timestamp, float value) {
+            if (mmAwaitingSample) {
+                /* the link is good: short backoff again next time */
+                mmAwaitingSample = false;
+                mFirstSampleLatency.record(SystemClock.elapsedRealtime() - mmConnectedAt);
+                if (mmLastTimestamp != 0) {
+                    mDataGaps.record(timestamp - mmLastTimestamp);
+                }
+                mmBackoff.reset();
+            }
+            mmLastTimestamp = timestamp;
+            mmSamples++;
+            mPipeline.publish(Channel.device(mmSlot, channel), timestamp, value);
         }
 
         public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+            mmCancelled = true;
+            mmSource.close();
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Called when the display mailbox goes from empty to non-empty; pokes
+     * the UI Activity so it schedules a frame to drain it.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            /* Get the BluetoothSocket input and output streams */
-            try {
-                tmpIn = socket.getInputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+    private final Runnable mDisplayWakeup = new Runnable() {
+        public void run() {
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.sendEmptyMessage(MainDisplayActivity.MESSAGE_TELEMETRY);
             }
+        }
+    };
 
-            mmInStream = tmpIn;
+    /**
+     * Hands alerts to the UI Activity.  Critical ones go to the front of
+     * its queue, ahead of any display updates waiting there.  The rule
+     * may change again before the UI gets to it, so the message carries a
+     * copy.
+     */
+    private final AlertEngine.AlertListener mAlertListener = new AlertEngine.AlertListener() {
+        public void onAlert(AlertRule rule) {
+            Log.w(TAG, (rule.isActive() ? "alert " : "cleared ") + rule.getId() + " " + rule.getValue());
+            Handler handler = mHandler;
+            if (handler == null) {
+                return;
+            }
+            Message msg = handler.obtainMessage(MainDisplayActivity.MESSAGE_ALERT,
+                    rule.isActive() ? 1 : 0, 0, new AlertEvent(rule));
+            if (rule.isCritical()) {
+                handler.sendMessageAtFrontOfQueue(msg);
+            } else {
+                handler.sendMessage(msg);
+            }
         }
+    };
+
+    /**
+     * The hall sensor's current is noisy enough to make the readout
+     * flicker: hold back single wild readings, take the median of what's
+     * left and smooth that a little.  Only the pack total on its way to
+     * the display is filtered; the recording, estimators, ledger and
+     * alerts keep the raw readings, so a real surge still trips
+     * overcurrent straight away.  PackAggregator publishes the total
+     * under its lock, so the chain has one writer at a time.
+     */
+    private void addCurrentFilters() {
+        mDisplayFilters.add(Channel.CURRENT, new SpikeFilter(CURRENT_MAX_STEP, CURRENT_SPIKE_CONFIRM));
+        mDisplayFilters.add(Channel.CURRENT, new MedianFilter(CURRENT_MEDIAN));
+        mDisplayFilters.add(Channel.CURRENT, new EmaFilter(CURRENT_TAU));
+    }
 
+    private final Runnable mAlertTick = new Runnable() {
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-
-            /* Keep listening to the InputStream while connected */
-            while (true) {
-                try {
-                    /* read line by lane and parse as we go */
-                    /* TODO: investigate using packed binary for efficiency */
-                    BufferedReader br = new BufferedReader(new InputStreamReader(mmInStream));
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        //Log.v(TAG, "BT just read a line: " + line);
-                        Scanner scanner = new Scanner(line);
-                        scanner.useDelimiter("=");
-                        if (line.contains("=") && scanner.hasNext()) {
-                            String name = scanner.next();
-                            String value = scanner.next();
-                            //Log.v(TAG, "name : " + name.trim() + ", and value is : " + value.trim());
-
-                            if (mHandler != null) {
-                                if (name.trim().equalsIgnoreCase("s")) {
-                                    Message msg = mHandler.obtainMessage(MainDisplayActivity.MESSAGE_SPEED);
-                                    Bundle bundle = new Bundle();
-                                    bundle.putString(MainDisplayActivity.TOAST, value.trim());
-                                    msg.setData(bundle);
-                                    mHandler.sendMessage(msg);
-                                }
-                                if (name.trim().equalsIgnoreCase("v")) {
-                                    Message msg = mHandler.obtainMessage(MainDisplayActivity.MESSAGE_VOLTAGE);
-                                    Bundle bundle = new Bundle();
-                                    bundle.putString(MainDisplayActivity.TOAST, value.trim());
-                                    msg.setData(bundle);
-                                    mHandler.sendMessage(msg);
-                                }
-                                if (name.trim().equalsIgnoreCase("a")) {
-                                    Message msg = mHandler.obtainMessage(MainDisplayActivity.MESSAGE_CURRENT);
-                                    Bundle bundle = new Bundle();
-                                    bundle.putString(MainDisplayActivity.TOAST, value.trim());
-                                    msg.setData(bundle);
-                                    mHandler.sendMessage(msg);
-                                }
-                            }
-                        }
-                    }
-                } catch (IOException e) {
-                    //Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
-            }
+            mPipeline.getAlerts().tick(System.currentTimeMillis());
         }
+    };
 
-        public void cancel() {
+    private final Runnable mTripCheckpoint = new Runnable() {
+        public void run() {
             try {
-                mmSocket.close();
+                mTrips.checkpoint();
             } catch (IOException e) {
-                //Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "trip checkpoint failed", e);
             }
         }
-    }
+    };
 
     /**
      * Show a notification while this service is running.
@@ -489,9 +822,106 @@ public class MonitorService extends Service {
         mNM.notify(R.string.service_started, notification);
     }
 
+    /**
+     * Recent samples for each channel, recorded whether or not a UI is
+     * bound.  Safe to read from any thread.
+     */
+    public TelemetryHistory getHistory() {
+        return mPipeline.getHistory();
+    }
+
+    /**
+     * 1s/1m/1h summaries of every channel, for trends and "over the last
+     * hour" questions.  Safe to query from any thread.
+     */
+    public RollupEngine getRollups() {
+        return mPipeline.getRollups();
+    }
+
+    /**
+     * Totals across all connected monitors; also published on the shared
+     * SPEED, VOLTAGE and CURRENT channels.
+     */
+    public PackAggregator getPack() {
+        return mPipeline.getPack();
+    }
+
+    /**
+     * Coulomb counting state of charge estimate; also published on the
+     * STATE_OF_CHARGE channel.
+     */
+    public StateOfChargeEstimator getStateOfCharge() {
+        return mPipeline.getStateOfCharge();
+    }
+
+    /**
+     * Wheel and GPS speed fused; also published on the FUSED_SPEED
+     * channel.
+     */
+    public SpeedFusion getSpeedFusion() {
+        return mPipeline.getSpeedFusion();
+    }
+
+    /**
+     * Energy use per mile and estimated range; also published on the
+     * WH_PER_MILE and RANGE channels.
+     */
+    public RangeEstimator getRange() {
+        return mPipeline.getRange();
+    }
+
+    /**
+     * The rules watching the samples; raised alerts reach the UI Activity
+     * as MESSAGE_ALERT.
+     */
+    public AlertEngine getAlerts() {
+        return mPipeline.getAlerts();
+    }
+
+    /**
+     * Sample to UI delivery time of alerts, us; recorded by the UI.
+     */
+    public LatencyHistogram getAlertLatency() {
+        return mAlertLatency;
+    }
+
+    /**
+     * Per stage latency from socket read to drawn gauge; the UI stamps
+     * the last two stages.
+     */
+    public LatencyProbe getLatencyProbe() {
+        return mProbe;
+    }
+
+    /**
+     * Distance and energy for trip A/B and the lifetime of the install.
+     * Reads are constant time and safe from any thread.
+     */
+    public TripLedger getTrips() {
+        return mTrips;
+    }
+
+    /**
+     * The recorder writing this ride to disk.
+     */
+    public SegmentRecorder getRecorder() {
+        return mPipeline.getRecorder();
+    }
+
+    /**
+     * Newest value of each channel, for the display to drain once per
+     * frame.
+     */
+    public LatestValueMailbox getMailbox() {
+        return mMailbox;
+    }
+
     public void setHandler(Handler handler) {
-        /* TODO Auto-generated method stub */
         mHandler = handler;
+        /* values that arrived while nobody was listening won't wake it */
+        if (mMailbox.isPending()) {
+            mDisplayWakeup.run();
+        }
     }
 
     private void alert(String string) {
@@ -501,13 +931,15 @@ public class MonitorService extends Service {
     public class LocationUpdateHandler implements LocationListener {
 
         public void onLocationChanged(Location loc) {
+                long start = System.nanoTime();
                 if (mLastLocation != null) {
-                    if (mHandler != null) {
-                        mHandler.obtainMessage(MainDisplayActivity.MESSAGE_GPS_SPEED, new Float(loc.getSpeed())).sendToTarget();
-                        mHandler.obtainMessage(MainDisplayActivity.MESSAGE_GPS_ACCURACY, new Float(loc.getAccuracy())).sendToTarget();
-                    }
+                    long now = System.currentTimeMillis();
+                    /* accuracy first, SpeedFusion weighs the speed by it */
+                    mPipeline.publish(Channel.GPS_ACCURACY, now, loc.getAccuracy());
+                    mPipeline.publish(Channel.GPS_SPEED, now, loc.getSpeed() * MPS_TO_MPH);
                 }
                 mLastLocation = loc;
+                mGpsPolicy.recordFixCost(System.nanoTime() - start);
             }
 
             public void onProviderDisabled(String provider) {}
@@ -516,7 +948,6 @@ public class MonitorService extends Service {
 
         public void onStatusChanged(String provider, int status, Bundle extras) {
             //Log.v(TAG, "onStatusChanged()");
-            Toast.makeText(getBaseContext(), "onStatusChanged()", Toast.LENGTH_SHORT).show();
             int state = STATE_LOCATING;
             switch (status) {
             case LocationProvider.AVAILABLE:
@@ -540,6 +971,9 @@ public class MonitorService extends Service {
 
     public int turnOnGps() {
         Log.v(TAG, "turnOnGps()");
+        if (mGpsMode >= 0) {
+            return 1; /* already on */
+        }
         mLocationListener  = new LocationUpdateHandler();
 
         /* make sure we have a gps */
@@ -547,7 +981,10 @@ public class MonitorService extends Service {
             return 0;
         }
 
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, mLocationListener);
+        long now = System.currentTimeMillis();
+        mGpsPolicy.setGpsOn(true, now);
+        requestGps(mGpsPolicy.evaluate(now));
+        mMainHandler.postDelayed(mGpsPolicyCheck, GPS_POLICY_INTERVAL);
         if (mHandler != null) {
             mHandler.obtainMessage(MainDisplayActivity.MESSAGE_STATE_CHANGE, STATE_LOCATING, -1).sendToTarget();
         }
@@ -559,9 +996,57 @@ public class MonitorService extends Service {
         if (mLocationListener != null) {
             locationManager.removeUpdates(mLocationListener);
         }
+        mMainHandler.removeCallbacks(mGpsPolicyCheck);
+        if (mGpsMode >= 0) {
+            mGpsMode = -1;
+            long now = System.currentTimeMillis();
+            mGpsPolicy.setGpsOn(false, now);
+            Log.i(TAG, mGpsPolicy.summary(now));
+        }
         if (mHandler != null) {
             mHandler.obtainMessage(MainDisplayActivity.MESSAGE_STATE_CHANGE, STATE_OFF, -1).sendToTarget();
         }
         return 0;
     }
+
+    /* (re)request fixes at a GpsPolicy mode's rate; main thread */
+    private void requestGps(int mode) {
+        if (mGpsMode >= 0) {
+            locationManager.removeUpdates(mLocationListener);
+        }
+        mGpsMode = mode;
+        if (D) {
+            Log.d(TAG, "gps " + GpsPolicy.getModeName(mode));
+        }
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER,
+                GpsPolicy.getMinTime(mode), GpsPolicy.getMinDistance(mode), mLocationListener);
+    }
+
+    private final Runnable mGpsPolicyCheck = new Runnable() {
+        public void run() {
+            int mode = mGpsPolicy.evaluate(System.currentTimeMillis());
+            if (mode != mGpsMode) {
+                requestGps(mode);
+            }
+            mMainHandler.postDelayed(this, GPS_POLICY_INTERVAL);
+        }
+    };
+
+    /**
+     * The UI Activity went to or came back from the background; GPS slows
+     * down while nobody is looking.  Main thread.
+     */
+    public void setDisplayVisible(boolean visible) {
+        mGpsPolicy.setDisplayVisible(visible);
+        if (mGpsMode >= 0) {
+            int mode = mGpsPolicy.evaluate(System.currentTimeMillis());
+            if (mode != mGpsMode) {
+                requestGps(mode);
+            }
+        }
+    }
+
+    public GpsPolicy getGpsPolicy() {
+        return mGpsPolicy;
+    }
 }
@@ -0,0 +1,156 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Watches the sample stream for the conditions a rider has to hear about
+ * (low voltage, overcurrent, a monitor gone quiet) and reports each
+ * {@link AlertRule} as it raises and clears.
+ *
+ * Rules are indexed by channel when they are added, so a sample only
+ * touches the few rules on its own channel, each in constant time: no
+ * windows, no history.  Silent rules are checked against the clock by
+ * {@link #tick}, which the owner calls every second or so.
+ *
+ * Called from every device's reader thread, so it is synchronized.  The
+ * listener is called with the lock held and must only hand the alert on.
+ */
+public class AlertEngine implements SampleListener {
+    public interface AlertListener {
+        /** @param rule  Raised or cleared, see {@link AlertRule#isActive} */
+        void onAlert(AlertRule rule);
+    }
+
+    /* pack rules, for a 36 V pack; levels scale with the nominal voltage */
+    private static final float LOW_VOLTS = 33.0f;
+    private static final float LOW_VOLTS_CLEAR = 34.0f;
+    private static final float CUTOFF_VOLTS = 31.5f;
+    private static final float CUTOFF_VOLTS_CLEAR = 33.0f;
+    private static final float SAG_VOLTS_PER_SECOND = 0.5f;
+    private static final float SAG_CLEAR = 0.1f;
+    private static final float HIGH_AMPS = 30;
+    private static final float HIGH_AMPS_CLEAR = 25;
+    private static final float MAX_AMPS = 45;
+    private static final float MAX_AMPS_CLEAR = 40;
+    private static final long LINK_TIMEOUT = 5 * 1000;
+
+    private final AlertRule[][] mByChannel = new AlertRule[Channel.COUNT][];
+    private AlertRule[] mSilent = new AlertRule[0];
+    private AlertListener mListener = null;
+    private long mRaised = 0;
+
+    public AlertEngine() {
+        for (int i = 0; i < mByChannel.length; i++) {
+            mByChannel[i] = new AlertRule[0];
+        }
+    }
+
+    public synchronized void add(AlertRule rule) {
+        int channel = rule.getChannel();
+        if (rule.getKind() == AlertRule.KIND_SILENT) {
+            mSilent = append(mSilent, rule);
+        }
+        mByChannel[channel] = append(mByChannel[channel], rule);
+    }
+
+    private static AlertRule[] append(AlertRule[] rules, AlertRule rule) {
+        AlertRule[] grown = new AlertRule[rules.length + 1];
+        System.arraycopy(rules, 0, grown, 0, rules.length);
+        grown[rules.length] = rule;
+        return grown;
+    }
+
+    /**
+     * Add the rules every pack wants: low voltage and cutoff, voltage
+     * falling fast, high current, and each monitor's link.
+     */
+    public void addPackRules(double nominalVolts) {
+        float scale = (float) (nominalVolts / 36);
+        add(AlertRule.below("low_voltage", "battery low", AlertRule.SEVERITY_WARNING,
+                Channel.VOLTAGE, LOW_VOLTS * scale, LOW_VOLTS_CLEAR * scale).sustained(5 * 1000));
+        add(AlertRule.below("cutoff_voltage", "battery at cutoff", AlertRule.SEVERITY_CRITICAL,
+                Channel.VOLTAGE, CUTOFF_VOLTS * scale, CUTOFF_VOLTS_CLEAR * scale).sustained(2 * 1000));
+        add(AlertRule.falling("voltage_sag", "voltage dropping fast", AlertRule.SEVERITY_WARNING,
+                Channel.VOLTAGE, SAG_VOLTS_PER_SECOND * scale, SAG_CLEAR * scale).sustained(5 * 1000));
+        add(AlertRule.above("high_current", "current high", AlertRule.SEVERITY_WARNING,
+                Channel.CURRENT, HIGH_AMPS, HIGH_AMPS_CLEAR).sustained(3 * 1000));
+        add(AlertRule.above("overcurrent", "overcurrent", AlertRule.SEVERITY_CRITICAL,
+                Channel.CURRENT, MAX_AMPS, MAX_AMPS_CLEAR).sustained(500));
+        for (int slot = 0; slot < Channel.MAX_DEVICES; slot++) {
+            add(AlertRule.silent("link_lost_" + slot, "monitor " + (slot + 1) + " lost",
+                    AlertRule.SEVERITY_CRITICAL, Channel.device(slot, Channel.VOLTAGE), LINK_TIMEOUT));
+        }
+    }
+
+    public synchronized void setListener(AlertListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void onSample(int channel, long timestamp, float value) {
+        AlertRule[] rules = mByChannel[channel];
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i].evaluate(timestamp, value)) {
+                changed(rules[i]);
+            }
+        }
+    }
+
+    /**
+     * Check silent rules.
+     * @param now  Wall clock ms, the clock samples are stamped with
+     */
+    public synchronized void tick(long now) {
+        for (int i = 0; i < mSilent.length; i++) {
+            if (mSilent[i].check(now)) {
+                changed(mSilent[i]);
+            }
+        }
+    }
+
+    /**
+     * Forget a channel's rules without reporting them, e.g. when a device
+     * is disconnected on purpose and its silence is expected.
+     */
+    public synchronized void reset(int channel) {
+        AlertRule[] rules = mByChannel[channel];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i].reset();
+        }
+    }
+
+    /** Forget every rule's state without reporting anything. */
+    public synchronized void reset() {
+        for (int i = 0; i < mByChannel.length; i++) {
+            reset(i);
+        }
+    }
+
+    private void changed(AlertRule rule) {
+        if (rule.isActive()) {
+            mRaised++;
+        }
+        if (mListener != null) {
+            mListener.onAlert(rule);
+        }
+    }
+
+    /** @return how many times any rule has raised */
+    public synchronized long getRaisedCount() {
+        return mRaised;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * A copy of an {@link AlertRule}'s last change, taken when the engine
+ * reports it.  The rule itself keeps changing on the engine thread, so
+ * anything handing the change to another thread should hand over one of
+ * these; whether it raised or cleared travels alongside.
+ */
+public final class AlertEvent {
+    private final String mId;
+    private final String mMessage;
+    private final int mSeverity;
+    private final float mValue;
+    private final long mChangedAt;
+    private final long mChangedNanos;
+
+    /** Call from the listener, while the engine holds the rule still. */
+    public AlertEvent(AlertRule rule) {
+        mId = rule.getId();
+        mMessage = rule.getMessage();
+        mSeverity = rule.getSeverity();
+        mValue = rule.getValue();
+        mChangedAt = rule.getChangedAt();
+        mChangedNanos = rule.getChangedNanos();
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    public boolean isCritical() {
+        return mSeverity == AlertRule.SEVERITY_CRITICAL;
+    }
+
+    /** @see AlertRule#getValue */
+    public float getValue() {
+        return mValue;
+    }
+
+    /** @see AlertRule#getChangedAt */
+    public long getChangedAt() {
+        return mChangedAt;
+    }
+
+    /** @see AlertRule#getChangedNanos */
+    public long getChangedNanos() {
+        return mChangedNanos;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * One condition watched by an {@link AlertEngine}: a channel above or
+ * below a level, rising or falling faster than a rate, or gone silent.
+ * Each rule raises at its trigger level and clears only at a separate
+ * clear level, so a reading hovering at the threshold doesn't flap, and
+ * can be made to raise only once the condition has held for a while.
+ *
+ * A rule keeps its own state and belongs to a single engine; it is
+ * updated under the engine's lock and read by whoever was told about the
+ * change.  To pass a change to another thread, pass an {@link AlertEvent}.
+ */
+public class AlertRule {
+    public static final int SEVERITY_WARNING = 0;
+    public static final int SEVERITY_CRITICAL = 1;
+
+    static final int KIND_LEVEL = 0;
+    static final int KIND_RATE = 1;
+    static final int KIND_SILENT = 2;
+
+    /* ms time constant smoothing the rate of change, so one noisy
+       reading doesn't look like a trend */
+    static final long RATE_TAU = 1000;
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final String mId;
+    private final String mMessage;
+    private final int mSeverity;
+    private final int mChannel;
+    private final int mKind;
+    private final float mSign;    /* +1 raises going up, -1 going down */
+    private final float mTrigger; /* compared as mSign * x */
+    private final float mClear;
+    private long mHold = 0;
+
+    /* evaluation state, engine thread */
+    private long mPendingSince = NONE;
+    private long mLastTime = NONE;
+    private float mLastValue;
+    private float mRate;
+
+    /* the last change, for whoever was told */
+    private volatile boolean mActive = false;
+    private volatile float mValue = Float.NaN;
+    private volatile long mChangedAt;
+    private volatile long mChangedNanos;
+
+    private AlertRule(String id, String message, int severity, int channel, int kind,
+            float sign, float trigger, float clear) {
+        mId = id;
+        mMessage = message;
+        mSeverity = severity;
+        mChannel = channel;
+        mKind = kind;
+        mSign = sign;
+        mTrigger = sign * trigger;
+        mClear = sign * clear;
+    }
+
+    /**
+     * Raise when the channel reaches {@code trigger} or more, clear when it
+     * is back to {@code clear} or less.
+     */
+    public static AlertRule above(String id, String message, int severity, int channel,
+            float trigger, float clear) {
+        return new AlertRule(id, message, severity, channel, KIND_LEVEL, 1, trigger, clear);
+    }
+
+    /**
+     * Raise when the channel reaches {@code trigger} or less, clear when it
+     * is back to {@code clear} or more.
+     */
+    public static AlertRule below(String id, String message, int severity, int channel,
+            float trigger, float clear) {
+        return new AlertRule(id, message, severity, channel, KIND_LEVEL, -1, trigger, clear);
+    }
+
+    /**
+     * Raise when the channel climbs by {@code trigger} units per second or
+     * faster, clear when that slows to {@code clear}.
+     */
+    public static AlertRule rising(String id, String message, int severity, int channel,
+            float trigger, float clear) {
+        return new AlertRule(id, message, severity, channel, KIND_RATE, 1, trigger, clear);
+    }
+
+    /**
+     * Raise when the channel drops by {@code trigger} units per second or
+     * faster, clear when that slows to {@code clear}.  Both are positive.
+     */
+    public static AlertRule falling(String id, String message, int severity, int channel,
+            float trigger, float clear) {
+        return new AlertRule(id, message, severity, channel, KIND_RATE, -1, -trigger, -clear);
+    }
+
+    /**
+     * Raise when a channel that has been sending goes quiet for
+     * {@code ms}, clear when it sends again.  Checked by
+     * {@link AlertEngine#tick}.
+     */
+    public static AlertRule silent(String id, String message, int severity, int channel, long ms) {
+        AlertRule rule = new AlertRule(id, message, severity, channel, KIND_SILENT, 1, 0, 0);
+        rule.mHold = ms;
+        return rule;
+    }
+
+    /**
+     * Only raise once the condition has held for {@code ms}; a dip back
+     * out of it starts the wait over.
+     * @return this, for chaining onto the factory
+     */
+    public AlertRule sustained(long ms) {
+        mHold = ms;
+        return this;
+    }
+
+    /**
+     * Feed a sample on this rule's channel.
+     * @return true if the rule raised or cleared
+     */
+    boolean evaluate(long timestamp, float value) {
+        if (mKind == KIND_SILENT) {
+            mLastTime = timestamp;
+            return mActive && change(false, timestamp, value);
+        }
+        float x = value;
+        if (mKind == KIND_RATE) {
+            long last = mLastTime;
+            float lastValue = mLastValue;
+            mLastTime = timestamp;
+            mLastValue = value;
+            if (last == NONE || timestamp <= last) {
+                return false;
+            }
+            long dt = timestamp - last;
+            float rate = (value - lastValue) * 1000f / dt;
+            mRate += (rate - mRate) * dt / (RATE_TAU + dt);
+            x = mRate;
+        }
+        x *= mSign;
+        if (x >= mTrigger) {
+            if (mPendingSince == NONE) {
+                mPendingSince = timestamp;
+            }
+            return !mActive && timestamp - mPendingSince >= mHold && change(true, timestamp, value);
+        }
+        mPendingSince = NONE;
+        return mActive && x <= mClear && change(false, timestamp, value);
+    }
+
+    /**
+     * Check a silent rule against the clock.
+     * @return true if it raised
+     */
+    boolean check(long now) {
+        return mKind == KIND_SILENT && !mActive && mLastTime != NONE
+                && now - mLastTime >= mHold && change(true, now, Float.NaN);
+    }
+
+    /* forget everything, e.g. when the devices are disconnected on purpose */
+    void reset() {
+        mPendingSince = NONE;
+        mLastTime = NONE;
+        mRate = 0;
+        mActive = false;
+    }
+
+    private boolean change(boolean active, long timestamp, float value) {
+        mValue = value;
+        mChangedAt = timestamp;
+        mChangedNanos = System.nanoTime();
+        mActive = active;
+        return true;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    public int getSeverity() {
+        return mSeverity;
+    }
+
+    public boolean isCritical() {
+        return mSeverity == SEVERITY_CRITICAL;
+    }
+
+    public int getChannel() {
+        return mChannel;
+    }
+
+    int getKind() {
+        return mKind;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /** @return the reading at the last change, NaN for a silent channel */
+    public float getValue() {
+        return mValue;
+    }
+
+    /** @return sample time of the last change, wall clock ms */
+    public long getChangedAt() {
+        return mChangedAt;
+    }
+
+    /**
+     * @return {@link System#nanoTime} when the engine saw the sample that
+     *         caused the last change, for measuring delivery latency
+     */
+    public long getChangedNanos() {
+        return mChangedNanos;
+    }
+}
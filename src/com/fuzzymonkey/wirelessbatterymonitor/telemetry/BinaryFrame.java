@@ -0,0 +1,88 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Layout of the packed binary telemetry frame.  Every frame is 7 bytes:
+ *
+ * <pre>
+ *   0xA5 0x5A   sync word
+ *   channel     one of the {@link Channel} ids
+ *   value       signed 16 bit, big endian, hundredths of a unit
+ *   sequence    8 bit counter, wraps
+ *   crc         CRC-8 (poly 0x07) over channel, value and sequence
+ * </pre>
+ *
+ * The sync bytes are never valid ASCII, which is what lets the decoder
+ * tell a binary stream from the text protocol.
+ */
+public final class BinaryFrame {
+    public static final int SYNC1 = 0xA5;
+    public static final int SYNC2 = 0x5A;
+    public static final int LENGTH = 7;
+
+    /* fixed point scale of the value field */
+    public static final float SCALE = 100f;
+
+    private static final byte[] CRC_TABLE = new byte[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private BinaryFrame() {
+    }
+
+    /**
+     * CRC-8 of a run of bytes.
+     */
+    public static int crc(byte[] buffer, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC_TABLE[(crc ^ buffer[i]) & 0xFF];
+        }
+        return crc & 0xFF;
+    }
+
+    /**
+     * Write one frame.  Values outside what 16 bits of hundredths can hold
+     * are clamped.
+     * @return number of bytes written, always {@link #LENGTH}
+     */
+    public static int encode(int channel, float value, int sequence, byte[] dst, int offset) {
+        int fixed = Math.round(value * SCALE);
+        if (fixed > Short.MAX_VALUE) {
+            fixed = Short.MAX_VALUE;
+        } else if (fixed < Short.MIN_VALUE) {
+            fixed = Short.MIN_VALUE;
+        }
+        dst[offset] = (byte) SYNC1;
+        dst[offset + 1] = (byte) SYNC2;
+        dst[offset + 2] = (byte) channel;
+        dst[offset + 3] = (byte) (fixed >> 8);
+        dst[offset + 4] = (byte) fixed;
+        dst[offset + 5] = (byte) sequence;
+        dst[offset + 6] = (byte) crc(dst, offset + 2, 4);
+        return LENGTH;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Streaming parser for {@link BinaryFrame} frames.  A frame that fails its
+ * CRC is not thrown away wholesale; the parser rescans the bytes after its
+ * sync word so a real frame that started inside the corrupted one is still
+ * found.
+ *
+ * Not thread safe; each input stream gets its own parser.
+ */
+public class BinaryFrameParser {
+    private final SampleListener mListener;
+    private final byte[] mFrame = new byte[BinaryFrame.LENGTH];
+    private final byte[] mRescan = new byte[BinaryFrame.LENGTH];
+    private int mFill = 0;
+
+    private int mExpectedSequence = -1;
+    private long mSamples = 0;
+    private long mCrcErrors = 0;
+    private long mLostFrames = 0;
+
+    public BinaryFrameParser(SampleListener listener) {
+        mListener = listener;
+    }
+
+    public void feed(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            step(buffer[i]);
+        }
+    }
+
+    /** @return number of frames delivered to the listener */
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    /** @return number of frames dropped because the CRC did not match */
+    public long getCrcErrorCount() {
+        return mCrcErrors;
+    }
+
+    /** @return number of frames missing according to the sequence numbers */
+    public long getLostFrameCount() {
+        return mLostFrames;
+    }
+
+    private void step(byte b) {
+        int u = b & 0xFF;
+        switch (mFill) {
+        case 0:
+            if (u == BinaryFrame.SYNC1) {
+                mFrame[mFill++] = b;
+            }
+            return;
+        case 1:
+            if (u == BinaryFrame.SYNC2) {
+                mFrame[mFill++] = b;
+            } else if (u != BinaryFrame.SYNC1) {
+                mFill = 0;
+            }
+            return;
+        default:
+            mFrame[mFill++] = b;
+            if (mFill == BinaryFrame.LENGTH) {
+                endOfFrame();
+            }
+        }
+    }
+
+    private void endOfFrame() {
+        mFill = 0;
+        if (BinaryFrame.crc(mFrame, 2, 4) != (mFrame[6] & 0xFF)) {
+            mCrcErrors++;
+            /* resync: feed everything after the bad sync word back in.
+               That's one byte short of a frame so this cannot recurse. */
+            System.arraycopy(mFrame, 1, mRescan, 0, BinaryFrame.LENGTH - 1);
+            for (int i = 0; i < BinaryFrame.LENGTH - 1; i++) {
+                step(mRescan[i]);
+            }
+            return;
+        }
+
+        int sequence = mFrame[5] & 0xFF;
+        if (mExpectedSequence >= 0) {
+            mLostFrames += (sequence - mExpectedSequence) & 0xFF;
+        }
+        mExpectedSequence = (sequence + 1) & 0xFF;
+
+        int channel = mFrame[2];
+        if (channel < 0 || channel >= Channel.DEVICE_COUNT) {
+            return;
+        }
+        float value = (short) ((mFrame[3] << 8) | (mFrame[4] & 0xFF)) / BinaryFrame.SCALE;
+        mSamples++;
+        mListener.onSample(channel, System.currentTimeMillis(), value);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Reads bit fields written by {@link BitWriter}.
+ */
+public class BitReader {
+    private final byte[] mBytes;
+    private final int mEnd;
+    private int mPosition;
+
+    /**
+     * @param offset  Byte offset the bit stream starts at
+     * @param length  Length of the bit stream in bytes
+     */
+    public BitReader(byte[] bytes, int offset, int length) {
+        mBytes = bytes;
+        mPosition = offset << 3;
+        mEnd = (offset + length) << 3;
+    }
+
+    /**
+     * @param bits  0 to 64
+     * @throws IllegalStateException if the stream runs out
+     */
+    public long read(int bits) {
+        if (mPosition + bits > mEnd) {
+            throw new IllegalStateException("bit stream truncated");
+        }
+        long value = 0;
+        while (bits > 0) {
+            int used = mPosition & 7;
+            int room = 8 - used;
+            int take = Math.min(room, bits);
+            int chunk = (mBytes[mPosition >> 3] >>> (room - take)) & ((1 << take) - 1);
+            value = (value << take) | chunk;
+            mPosition += take;
+            bits -= take;
+        }
+        return value;
+    }
+
+    public boolean readBit() {
+        if (mPosition >= mEnd) {
+            throw new IllegalStateException("bit stream truncated");
+        }
+        boolean bit = (mBytes[mPosition >> 3] & (0x80 >>> (mPosition & 7))) != 0;
+        mPosition++;
+        return bit;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.util.Arrays;
+
+/**
+ * Appends bit fields, most significant bit first, to a growable byte
+ * array.
+ */
+public class BitWriter {
+    private byte[] mBytes;
+    private int mBitLength = 0;
+
+    public BitWriter(int initialBytes) {
+        mBytes = new byte[Math.max(initialBytes, 8)];
+    }
+
+    /**
+     * Write the low {@code bits} bits of value.
+     * @param bits  0 to 64
+     */
+    public void write(long value, int bits) {
+        ensure(bits);
+        while (bits > 0) {
+            int used = mBitLength & 7;
+            int room = 8 - used;
+            int take = Math.min(room, bits);
+            int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+            mBytes[mBitLength >> 3] |= chunk << (room - take);
+            mBitLength += take;
+            bits -= take;
+        }
+    }
+
+    public void writeBit(boolean bit) {
+        ensure(1);
+        if (bit) {
+            mBytes[mBitLength >> 3] |= 0x80 >>> (mBitLength & 7);
+        }
+        mBitLength++;
+    }
+
+    public int getBitLength() {
+        return mBitLength;
+    }
+
+    /** @return bytes used so far, the last one padded with zero bits */
+    public int getByteLength() {
+        return (mBitLength + 7) >> 3;
+    }
+
+    /** @return the backing array; only the first getByteLength() count */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    public void reset() {
+        Arrays.fill(mBytes, 0, getByteLength(), (byte) 0);
+        mBitLength = 0;
+    }
+
+    private void ensure(int bits) {
+        int needed = (mBitLength + bits + 7) >> 3;
+        if (needed > mBytes.length) {
+            byte[] bigger = new byte[Math.max(needed, mBytes.length * 2)];
+            System.arraycopy(mBytes, 0, bigger, 0, mBytes.length);
+            mBytes = bigger;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Channel ids for the samples that flow from the monitor hardware through
+ * the service.  Ids are small ints so consumers can index primitive arrays
+ * with them instead of hashing names.
+ *
+ * With several monitors connected each one gets a slot, and its raw
+ * SPEED/VOLTAGE/CURRENT arrive on that slot's own channels (see
+ * {@link #device}).  The plain SPEED/VOLTAGE/CURRENT channels then carry
+ * the pack totals, see {@link PackAggregator}.
+ */
+public final class Channel {
+    public static final int SPEED = 0;   /* s= wheel sensor speed, mph */
+    public static final int VOLTAGE = 1; /* v= pack voltage */
+    public static final int CURRENT = 2; /* a= pack current, amps */
+
+    /* channels above come off the monitor hardware, the rest are ours */
+    public static final int DEVICE_COUNT = 3;
+
+    public static final int GPS_SPEED = 3;    /* GPS speed, mph */
+    public static final int GPS_ACCURACY = 4; /* GPS fix accuracy, meters */
+    public static final int STATE_OF_CHARGE = 5; /* estimated pack charge, percent */
+    public static final int WH_PER_MILE = 6;  /* recent energy use, Wh per mile */
+    public static final int RANGE = 7;        /* estimated distance left, miles */
+
+    /* per device channels, DEVICE_COUNT of them for each slot */
+    public static final int MAX_DEVICES = 4;
+    public static final int FIRST_DEVICE = 8;
+
+    private static final int END_DEVICE = FIRST_DEVICE + MAX_DEVICES * DEVICE_COUNT;
+
+    /* ours again, added after the device channels so recorded ids stay put */
+    public static final int FUSED_SPEED = END_DEVICE; /* wheel and GPS speed fused, mph */
+
+    /* number of channel slots consumers should allocate; the display
+       mailbox keeps a bit per channel so this has to stay <= 32 */
+    public static final int COUNT = FUSED_SPEED + 1;
+
+    private Channel() {
+    }
+
+    /**
+     * @param slot     Device slot, 0 to MAX_DEVICES - 1
+     * @param channel  SPEED, VOLTAGE or CURRENT
+     * @return the channel id that device's readings are published on
+     */
+    public static int device(int slot, int channel) {
+        return FIRST_DEVICE + slot * DEVICE_COUNT + channel;
+    }
+
+    /**
+     * @return the device slot a per device channel belongs to, or -1 for
+     *         the shared channels
+     */
+    public static int slotOf(int channel) {
+        return channel < FIRST_DEVICE || channel >= END_DEVICE ? -1
+                : (channel - FIRST_DEVICE) / DEVICE_COUNT;
+    }
+
+    /**
+     * @return the SPEED/VOLTAGE/CURRENT a per device channel carries; shared
+     *         channels are returned unchanged
+     */
+    public static int baseOf(int channel) {
+        return channel < FIRST_DEVICE || channel >= END_DEVICE ? channel
+                : (channel - FIRST_DEVICE) % DEVICE_COUNT;
+    }
+
+    /**
+     * Map a protocol key byte to a channel id.
+     * @param key  The key byte from the wire (case insensitive)
+     * @return The channel id, or -1 if the key is not one we know
+     */
+    public static int fromKey(int key) {
+        switch (key | 0x20) { /* fold ASCII upper case to lower */
+        case 's':
+            return SPEED;
+        case 'v':
+            return VOLTAGE;
+        case 'a':
+            return CURRENT;
+        default:
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Runs each sample through its channel's chain of {@link SignalFilter}
+ * stages before handing it on; channels without a chain pass straight
+ * through.  Goes in front of a consumer that wants cleaned up readings,
+ * such as the display mailbox, and leaves the rest of the pipeline on
+ * the raw samples.
+ *
+ * Chains can be changed from any thread; the sample path reads an array
+ * that is replaced, never modified.  Stages themselves aren't locked:
+ * each channel has to be fed by one thread at a time, as every source
+ * already is.  NaN readings pass through without touching the stages,
+ * and a gap of a few seconds starts the channel's chain afresh so a
+ * reconnect doesn't begin from stale state.
+ */
+public class ChannelFilters implements SampleListener {
+    private static final long RESET_GAP = 5 * 1000;
+    private static final SignalFilter[] NONE = new SignalFilter[0];
+
+    private final SampleListener mOutput;
+    private volatile SignalFilter[][] mChains = new SignalFilter[Channel.COUNT][];
+    private final long[] mLast = new long[Channel.COUNT];
+
+    /**
+     * @param output  Receives the filtered samples
+     */
+    public ChannelFilters(SampleListener output) {
+        mOutput = output;
+    }
+
+    /**
+     * Append a stage to a channel's chain.
+     */
+    public synchronized void add(int channel, SignalFilter stage) {
+        SignalFilter[][] chains = copy();
+        SignalFilter[] old = chains[channel] == null ? NONE : chains[channel];
+        SignalFilter[] chain = new SignalFilter[old.length + 1];
+        System.arraycopy(old, 0, chain, 0, old.length);
+        chain[old.length] = stage;
+        chains[channel] = chain;
+        mChains = chains;
+    }
+
+    /**
+     * Drop a channel's chain; its samples pass through unfiltered.
+     */
+    public synchronized void clear(int channel) {
+        SignalFilter[][] chains = copy();
+        chains[channel] = null;
+        mChains = chains;
+    }
+
+    /**
+     * @return the stages filtering a channel, in order; don't modify
+     */
+    public SignalFilter[] getChain(int channel) {
+        SignalFilter[] chain = mChains[channel];
+        return chain == null ? NONE : chain;
+    }
+
+    private SignalFilter[][] copy() {
+        SignalFilter[][] old = mChains;
+        SignalFilter[][] chains = new SignalFilter[old.length][];
+        System.arraycopy(old, 0, chains, 0, old.length);
+        return chains;
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        SignalFilter[] chain = mChains[channel];
+        if (chain != null && value == value) { /* not NaN */
+            if (timestamp - mLast[channel] > RESET_GAP) {
+                for (int i = 0; i < chain.length; i++) {
+                    chain[i].reset();
+                }
+            }
+            mLast[channel] = timestamp;
+            for (int i = 0; i < chain.length; i++) {
+                value = chain[i].filter(timestamp, value);
+            }
+        }
+        mOutput.onSample(channel, timestamp, value);
+    }
+}
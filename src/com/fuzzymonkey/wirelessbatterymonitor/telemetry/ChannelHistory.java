@@ -0,0 +1,138 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Fixed capacity history of one channel, kept in parallel primitive arrays
+ * so memory use is set once at construction no matter how long the ride.
+ *
+ * There must be a single writer thread.  Readers on any thread copy out
+ * with {@link #snapshot} or {@link #range} without taking a lock; a read
+ * that races with the writer lapping the ring simply drops the entries
+ * that may have been overwritten mid-copy.
+ */
+public class ChannelHistory {
+    private final long[] mTimes;
+    private final float[] mValues;
+    private final int mMask;
+
+    /* total samples ever published; the volatile write publishes the
+       array stores that came before it */
+    private volatile long mWritten = 0;
+
+    /**
+     * @param capacity  Number of samples kept, rounded up to a power of two
+     */
+    public ChannelHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mTimes = new long[size];
+        mValues = new float[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Append a sample.  Only call from the single writer thread.
+     */
+    public void publish(long timestamp, float value) {
+        long seq = mWritten;
+        int slot = (int) seq & mMask;
+        mTimes[slot] = timestamp;
+        mValues[slot] = value;
+        mWritten = seq + 1;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /** @return number of samples published since construction */
+    public long getCount() {
+        return mWritten;
+    }
+
+    /**
+     * Copy out the most recent samples, oldest first.
+     * @return number of samples copied, at most the shorter array's length
+     */
+    public int snapshot(long[] times, float[] values) {
+        int max = Math.min(times.length, values.length);
+        long end = mWritten;
+        long start = Math.max(end - Math.min(max, getCapacity()), 0);
+        copy(start, end, times, values);
+        return validate(start, end, times, values);
+    }
+
+    /**
+     * Copy out the samples with from <= timestamp < to, oldest first.  If
+     * more match than fit, the oldest ones are returned.
+     * @return number of samples copied
+     */
+    public int range(long from, long to, long[] times, float[] values) {
+        int max = Math.min(times.length, values.length);
+        long end = mWritten;
+        long oldest = Math.max(end - getCapacity() + 1, 0);
+
+        /* timestamps only go forward, so binary search for the first one */
+        long lo = oldest;
+        long hi = end;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mTimes[(int) mid & mMask] < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        long stop = lo;
+        while (stop < end && stop - lo < max && mTimes[(int) stop & mMask] < to) {
+            stop++;
+        }
+        copy(lo, stop, times, values);
+        return validate(lo, stop, times, values);
+    }
+
+    private void copy(long start, long end, long[] times, float[] values) {
+        int n = 0;
+        for (long seq = start; seq < end; seq++, n++) {
+            int slot = (int) seq & mMask;
+            times[n] = mTimes[slot];
+            values[n] = mValues[slot];
+        }
+    }
+
+    /**
+     * Drop entries the writer may have overwritten while we copied.  The
+     * slot of the sample being written right now is also suspect, hence
+     * the + 1.
+     */
+    private int validate(long start, long end, long[] times, float[] values) {
+        long firstGood = mWritten - getCapacity() + 1;
+        if (start >= firstGood) {
+            return (int) (end - start);
+        }
+        if (end <= firstGood) {
+            return 0;
+        }
+        int skip = (int) (firstGood - start);
+        int count = (int) (end - firstGood);
+        System.arraycopy(times, skip, times, 0, count);
+        System.arraycopy(values, skip, values, 0, count);
+        return count;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the columnar ride format written by {@link ColumnarEncoder}.
+ * Columns are independent, so a chart of one channel only decodes that
+ * channel.
+ */
+public class ColumnarDecoder {
+    private final byte[] mBytes;
+    private final int[] mOffset = new int[Channel.COUNT];
+    private final int[] mLength = new int[Channel.COUNT];
+    private final int[] mCount = new int[Channel.COUNT];
+
+    /**
+     * @throws IOException if the bytes aren't a columnar ride
+     */
+    public ColumnarDecoder(byte[] bytes, int offset, int length) throws IOException {
+        mBytes = bytes;
+        int end = offset + length;
+        if (length < 8 || readInt(offset) != ColumnarEncoder.MAGIC) {
+            throw new IOException("not a columnar ride");
+        }
+        int columns = ((bytes[offset + 6] & 0xFF) << 8) | (bytes[offset + 7] & 0xFF);
+        int pos = offset + 8;
+        for (int i = 0; i < columns; i++) {
+            if (pos + 9 > end) {
+                throw new IOException("columnar ride truncated");
+            }
+            int channel = bytes[pos];
+            int count = readInt(pos + 1);
+            int bytesLength = readInt(pos + 5);
+            pos += 9;
+            if (channel < 0 || channel >= Channel.COUNT || bytesLength < 0 || pos + bytesLength > end) {
+                throw new IOException("columnar ride corrupt");
+            }
+            mOffset[channel] = pos;
+            mLength[channel] = bytesLength;
+            mCount[channel] = count;
+            pos += bytesLength;
+        }
+    }
+
+    /** @return samples stored for a channel */
+    public int getCount(int channel) {
+        return mCount[channel];
+    }
+
+    /**
+     * @return a decoder positioned at the first sample of the channel
+     */
+    public TimeSeriesDecoder column(int channel) {
+        return new TimeSeriesDecoder(mBytes, mOffset[channel], mLength[channel], mCount[channel]);
+    }
+
+    /**
+     * Decode every column into the listener, one channel after another
+     * (not interleaved by time).
+     */
+    public void replay(SampleListener listener) {
+        for (int channel = 0; channel < Channel.COUNT; channel++) {
+            if (mCount[channel] > 0) {
+                column(channel).replay(channel, listener);
+            }
+        }
+    }
+
+    public static ColumnarDecoder open(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return new ColumnarDecoder(bytes, 0, bytes.length);
+    }
+
+    private int readInt(int pos) {
+        return ((mBytes[pos] & 0xFF) << 24) | ((mBytes[pos + 1] & 0xFF) << 16)
+            | ((mBytes[pos + 2] & 0xFF) << 8) | (mBytes[pos + 3] & 0xFF);
+    }
+}
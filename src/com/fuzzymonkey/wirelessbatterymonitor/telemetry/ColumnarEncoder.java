@@ -0,0 +1,127 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds the compressed, columnar form of a ride: one
+ * {@link TimeSeriesEncoder} column per channel.  Feed it samples as a
+ * SampleListener (live, or replayed from recorded segments) and then
+ * write it out.
+ *
+ * File layout, big endian:
+ * <pre>
+ *   int   magic "WBMZ"
+ *   short version
+ *   short number of columns
+ *   per column:
+ *     byte  channel
+ *     int   sample count
+ *     int   byte length
+ *     bytes encoded column
+ * </pre>
+ */
+public class ColumnarEncoder implements SampleListener {
+    public static final int MAGIC = 0x57424D5A; /* "WBMZ" */
+    public static final short VERSION = 1;
+    public static final String SUFFIX = ".wbz";
+
+    private final TimeSeriesEncoder[] mColumns = new TimeSeriesEncoder[Channel.COUNT];
+
+    public ColumnarEncoder() {
+        for (int i = 0; i < mColumns.length; i++) {
+            mColumns[i] = new TimeSeriesEncoder(4096);
+        }
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        mColumns[channel].append(timestamp, value);
+    }
+
+    /** @return samples held across all columns */
+    public int getCount() {
+        int count = 0;
+        for (int i = 0; i < mColumns.length; i++) {
+            count += mColumns[i].getCount();
+        }
+        return count;
+    }
+
+    /** @return bytes writeTo() will write */
+    public int getByteLength() {
+        int length = 8;
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i].getCount() > 0) {
+                length += 9 + mColumns[i].getByteLength();
+            }
+        }
+        return length;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        int columns = 0;
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i].getCount() > 0) {
+                columns++;
+            }
+        }
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(columns);
+        for (int i = 0; i < mColumns.length; i++) {
+            TimeSeriesEncoder column = mColumns[i];
+            if (column.getCount() == 0) {
+                continue;
+            }
+            out.writeByte(i);
+            out.writeInt(column.getCount());
+            out.writeInt(column.getByteLength());
+            out.write(column.getBytes(), 0, column.getByteLength());
+        }
+        out.flush();
+    }
+
+    public void reset() {
+        for (int i = 0; i < mColumns.length; i++) {
+            mColumns[i].reset();
+        }
+    }
+
+    /**
+     * Compress a recorded segment into a columnar file.
+     * @return the compressed size in bytes
+     */
+    public static int compact(File segment, File output) throws IOException {
+        ColumnarEncoder encoder = new ColumnarEncoder();
+        new SegmentReader(segment).replay(encoder);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+        try {
+            encoder.writeTo(out);
+        } finally {
+            out.close();
+        }
+        return encoder.getByteLength();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Running sum that carries the rounding error of each addition forward
+ * (Kahan-Babuska/Neumaier), so adding millions of tiny increments to a
+ * large total doesn't lose them.
+ */
+public class CompensatedSum {
+    private double mSum = 0;
+    private double mCompensation = 0;
+
+    public void add(double value) {
+        double t = mSum + value;
+        if (Math.abs(mSum) >= Math.abs(value)) {
+            mCompensation += (mSum - t) + value;
+        } else {
+            mCompensation += (value - t) + mSum;
+        }
+        mSum = t;
+    }
+
+    public double get() {
+        return mSum + mCompensation;
+    }
+
+    public void set(double value) {
+        mSum = value;
+        mCompensation = 0;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Exponentially weighted moving average with a time constant rather than
+ * a per sample weight, so it smooths the same whatever rate the device
+ * sends at.  O(1), a divide per sample.
+ */
+public class EmaFilter extends SignalFilter {
+    private final long mTau;
+    private float mValue;
+    private long mLast = 0; /* 0 before the first sample */
+
+    /**
+     * @param tau  Time constant, ms
+     */
+    public EmaFilter(long tau) {
+        mTau = tau;
+    }
+
+    public float filter(long timestamp, float value) {
+        if (mLast == 0) {
+            mValue = value;
+        } else {
+            /* samples in the same ms still count, a little */
+            long dt = Math.max(1, timestamp - mLast);
+            mValue += (value - mValue) * dt / (mTau + dt);
+        }
+        mLast = timestamp;
+        return mValue;
+    }
+
+    public void reset() {
+        mLast = 0;
+    }
+}
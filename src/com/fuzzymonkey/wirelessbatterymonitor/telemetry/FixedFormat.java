@@ -0,0 +1,76 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Writes fixed point decimal text into a caller supplied char[] so the UI
+ * can show readings without a String (or a Formatter) per update.
+ */
+public final class FixedFormat {
+    private static final long[] POW10 = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L
+    };
+
+    /* what NaN and infinity are shown as */
+    private static final char[] NO_VALUE = { '-', '-' };
+
+    /** Longest text format() writes for decimals <= 6 */
+    public static final int MAX_LENGTH = 28;
+
+    private FixedFormat() {
+    }
+
+    /**
+     * Format a value with a fixed number of decimals, like "%.1f".
+     * @param decimals  Digits after the point, 0 to 6
+     * @return number of chars written
+     */
+    public static int format(double value, int decimals, char[] dst, int offset) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            System.arraycopy(NO_VALUE, 0, dst, offset, NO_VALUE.length);
+            return NO_VALUE.length;
+        }
+
+        boolean negative = value < 0;
+        long scaled = Math.round(Math.abs(value) * POW10[decimals]);
+        negative &= scaled != 0; /* no "-0.0" */
+
+        /* count digits so we can write right to left */
+        int digits = 1;
+        for (long rest = scaled / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        if (digits <= decimals) {
+            digits = decimals + 1; /* leading 0 before the point */
+        }
+
+        int length = (negative ? 1 : 0) + digits + (decimals > 0 ? 1 : 0);
+        int pos = offset + length;
+        for (int i = 0; i < digits; i++) {
+            if (i == decimals && decimals > 0) {
+                dst[--pos] = '.';
+            }
+            dst[--pos] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+        }
+        if (negative) {
+            dst[--pos] = '-';
+        }
+        return length;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the text protocol from many Wi-Fi bridges over TCP without a
+ * thread per connection.  One thread accepts; a small fixed set of
+ * selector threads each own a share of the connections and a direct read
+ * buffer, and parse every read in place with the connection's
+ * {@link LineParser}.  A connection costs a parser and a selection key,
+ * so hundreds are cheap.
+ *
+ * Samples are delivered on the selector thread that owns the connection;
+ * connections on different selector threads deliver concurrently.
+ */
+public class GatewayServer {
+    /**
+     * Decides where each bridge's samples go.  Called on the accept and
+     * selector threads.
+     */
+    public interface ConnectionListener {
+        /**
+         * @param id  Unique for the life of the server
+         * @return where this connection's samples go, null to refuse it
+         */
+        SampleListener connected(int id, SocketAddress remote);
+
+        void disconnected(int id);
+    }
+
+    private static final int READ_BUFFER = 64 * 1024;
+    /* ms windows to wait after a failed accept, e.g. out of file descriptors */
+    private static final long ACCEPT_BACKOFF_BASE = 50;
+    private static final long ACCEPT_BACKOFF_MAX = 2 * 1000;
+
+    private final int mPort;
+    private final ConnectionListener mListener;
+    private final SelectorLoop[] mLoops;
+    private ServerSocketChannel mServer;
+    private Thread mAcceptor;
+    private volatile boolean mRunning = false;
+
+    private final AtomicInteger mNextId = new AtomicInteger(0);
+    private final AtomicInteger mConnections = new AtomicInteger(0);
+    private final AtomicLong mAccepted = new AtomicLong(0);
+    private final AtomicLong mAcceptFailures = new AtomicLong(0);
+
+    /**
+     * @param port       TCP port to listen on, 0 for any free one
+     * @param selectors  Selector threads, a couple per core at most
+     */
+    public GatewayServer(int port, int selectors, ConnectionListener listener) {
+        mPort = port;
+        mListener = listener;
+        mLoops = new SelectorLoop[selectors];
+    }
+
+    public synchronized void start() throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().setReuseAddress(true);
+        mServer.socket().bind(new InetSocketAddress(mPort), 1024);
+        mRunning = true;
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i] = new SelectorLoop(i);
+            mLoops[i].start();
+        }
+        mAcceptor = new Thread("GatewayAccept") {
+            public void run() {
+                accept();
+            }
+        };
+        mAcceptor.start();
+    }
+
+    /**
+     * Close the listening socket and every connection, and wait for the
+     * threads to finish.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            /* closing anyway */
+        }
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i].mSelector.wakeup();
+        }
+        try {
+            mAcceptor.join();
+            for (int i = 0; i < mLoops.length; i++) {
+                mLoops[i].join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        /* the acceptor may have queued a connection after a loop's last
+           drain; every thread is gone now, so nothing else will */
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i].closePending();
+        }
+    }
+
+    /** @return the port actually listened on */
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /** @return connections open right now */
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /** @return connections accepted since start, refused ones included */
+    public long getAcceptedCount() {
+        return mAccepted.get();
+    }
+
+    /** @return accepts that failed while running, e.g. out of file descriptors */
+    public long getAcceptFailureCount() {
+        return mAcceptFailures.get();
+    }
+
+    /** @return samples parsed over all connections */
+    public long getSampleCount() {
+        long total = 0;
+        for (int i = 0; i < mLoops.length; i++) {
+            total += mLoops[i].mSamples;
+        }
+        return total;
+    }
+
+    /** @return bytes read over all connections */
+    public long getByteCount() {
+        long total = 0;
+        for (int i = 0; i < mLoops.length; i++) {
+            total += mLoops[i].mBytes;
+        }
+        return total;
+    }
+
+    private void accept() {
+        int next = 0;
+        ReconnectBackoff backoff = new ReconnectBackoff(ACCEPT_BACKOFF_BASE, ACCEPT_BACKOFF_MAX);
+        while (mRunning) {
+            SocketChannel channel;
+            try {
+                channel = mServer.accept();
+            } catch (IOException e) {
+                if (!mRunning) {
+                    break; /* closed by stop() */
+                }
+                /* out of file descriptors and the like: the listening
+                   socket is still good, so wait for some to free up */
+                mAcceptFailures.incrementAndGet();
+                try {
+                    Thread.sleep(backoff.nextDelay());
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            backoff.reset();
+            mAccepted.incrementAndGet();
+            int id = mNextId.getAndIncrement();
+            SampleListener listener = mListener.connected(id, channel.socket().getRemoteSocketAddress());
+            if (listener == null) {
+                close(channel);
+                continue;
+            }
+            mConnections.incrementAndGet();
+            mLoops[next].add(new Connection(id, channel, listener));
+            next = (next + 1) % mLoops.length;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /* closing anyway */
+        }
+    }
+
+    /* per connection state, the selection key's attachment */
+    private static class Connection {
+        final int mId;
+        final SocketChannel mChannel;
+        final LineParser mParser;
+
+        Connection(int id, SocketChannel channel, SampleListener listener) {
+            mId = id;
+            mChannel = channel;
+            mParser = new LineParser(listener, 0);
+        }
+    }
+
+    private class SelectorLoop extends Thread {
+        final Selector mSelector;
+        final ByteBuffer mBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+        final ConcurrentLinkedQueue<Connection> mPending = new ConcurrentLinkedQueue<Connection>();
+        /* only this thread writes them */
+        volatile long mSamples = 0;
+        volatile long mBytes = 0;
+
+        SelectorLoop(int index) throws IOException {
+            super("GatewaySelector-" + index);
+            mSelector = Selector.open();
+        }
+
+        void add(Connection connection) {
+            mPending.add(connection);
+            mSelector.wakeup();
+        }
+
+        public void run() {
+            while (mRunning) {
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    break;
+                }
+                Connection connection;
+                while ((connection = mPending.poll()) != null) {
+                    try {
+                        connection.mChannel.configureBlocking(false);
+                        connection.mChannel.register(mSelector, SelectionKey.OP_READ, connection);
+                    } catch (IOException e) {
+                        closeConnection(connection);
+                    }
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                closeConnection((Connection) key.attachment());
+            }
+            closePending();
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                /* closing anyway */
+            }
+        }
+
+        void closePending() {
+            Connection connection;
+            while ((connection = mPending.poll()) != null) {
+                closeConnection(connection);
+            }
+        }
+
+        private void read(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            int count;
+            try {
+                count = connection.mChannel.read(mBuffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                key.cancel();
+                closeConnection(connection);
+                return;
+            }
+            mBuffer.flip();
+            long before = connection.mParser.getSampleCount();
+            connection.mParser.feed(mBuffer);
+            mBuffer.clear();
+            mBytes += count;
+            mSamples += connection.mParser.getSampleCount() - before;
+        }
+
+        private void closeConnection(Connection connection) {
+            close(connection.mChannel);
+            mConnections.decrementAndGet();
+            mListener.disconnected(connection.mId);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Decides how often to ask for GPS fixes.  Asking for every fix the
+ * receiver can produce keeps the radio and the main thread busy all ride
+ * long, when GPS mostly adds little: the wheel sensor gives speed on its
+ * own once it is known to agree with GPS, nobody needs fast fixes while
+ * the display is off, and none at all while parked.
+ *
+ * Listens to the wheel, GPS and fused speed channels and picks one of
+ * four modes, from fast (GPS is the only speed and someone is watching)
+ * to idle (parked).  Faster modes are taken at once, slower ones only
+ * after the current mode has held for a while, so the request isn't
+ * redone on every wobble.  Also counts fixes and their handling cost, to
+ * report what the slower modes saved against one fix a second.
+ */
+public class GpsPolicy implements SampleListener {
+    public static final int MODE_FAST = 0;    /* GPS is the speed, display on */
+    public static final int MODE_NORMAL = 1;  /* GPS is the speed, or disagrees with the wheel */
+    public static final int MODE_SLOW = 2;    /* wheel agrees with GPS, or display off */
+    public static final int MODE_IDLE = 3;    /* parked */
+
+    private static final long[] MIN_TIME = { 1000, 2000, 5000, 30 * 1000 }; /* ms */
+    private static final float[] MIN_DISTANCE = { 0, 5, 10, 25 };           /* metres */
+    private static final String[] MODE_NAMES = { "fast", "normal", "slow", "idle" };
+
+    private static final long BASELINE_INTERVAL = 1000; /* ms, what 0/0 requests deliver */
+    private static final long MIN_DWELL = 10 * 1000;    /* ms before stepping down */
+    private static final long WHEEL_TIMEOUT = 3 * 1000;
+    private static final long WHEEL_FRESH = 1500;       /* wheel reading close enough to a fix */
+    private static final float WHEEL_MIN_MPH = 3;       /* slower, the wheel is unreliable */
+    private static final float AGREE_MPH = 1;
+    private static final float AGREE_ALPHA = 0.2f;      /* per fix */
+    private static final float PARKED_MPH = 1;
+    private static final float MOVING_MPH = 2;
+    private static final long PARKED_AFTER = 30 * 1000;
+
+    private boolean mDisplayVisible = true;
+    private long mWheelTime = 0;
+    private float mWheel = 0;
+    private float mDisagreement = Float.NaN; /* EWMA of |wheel - GPS|, mph */
+    private long mStillSince = 0;            /* 0 while moving */
+    private int mMode = MODE_NORMAL;
+    private long mModeSince = 0;
+
+    /* accounting */
+    private final LatencyHistogram mFixCost = new LatencyHistogram(); /* us per fix handled */
+    private long mFixes = 0;
+    private long mOnTime = 0;   /* ms with GPS on, not counting the current stretch */
+    private long mOnSince = 0;  /* 0 while off */
+
+    public synchronized void onSample(int channel, long timestamp, float value) {
+        switch (channel) {
+        case Channel.SPEED:
+            mWheel = value;
+            mWheelTime = timestamp;
+            break;
+        case Channel.GPS_SPEED:
+            mFixes++;
+            if (timestamp - mWheelTime <= WHEEL_FRESH && mWheel >= WHEEL_MIN_MPH && value >= WHEEL_MIN_MPH) {
+                float error = Math.abs(mWheel - value);
+                mDisagreement = mDisagreement != mDisagreement ? error
+                        : mDisagreement + (error - mDisagreement) * AGREE_ALPHA;
+            }
+            break;
+        case Channel.FUSED_SPEED:
+            if (value < PARKED_MPH) {
+                if (mStillSince == 0) {
+                    mStillSince = timestamp;
+                }
+            } else if (value > MOVING_MPH) {
+                mStillSince = 0;
+            }
+            break;
+        }
+    }
+
+    public synchronized void setDisplayVisible(boolean visible) {
+        mDisplayVisible = visible;
+    }
+
+    /**
+     * @param now  Wall clock ms, the clock samples are stamped with
+     * @return the mode GPS should be in now
+     */
+    public synchronized int evaluate(long now) {
+        int wanted;
+        boolean wheelLive = now - mWheelTime <= WHEEL_TIMEOUT && mWheel >= WHEEL_MIN_MPH;
+        if (mStillSince != 0 && now - mStillSince >= PARKED_AFTER) {
+            wanted = MODE_IDLE;
+        } else if (!wheelLive) {
+            wanted = mDisplayVisible ? MODE_FAST : MODE_NORMAL;
+        } else if (mDisagreement < AGREE_MPH) { /* false while unknown (NaN) */
+            wanted = MODE_SLOW;
+        } else {
+            wanted = mDisplayVisible ? MODE_NORMAL : MODE_SLOW;
+        }
+        if (wanted < mMode || (wanted > mMode && now - mModeSince >= MIN_DWELL)) {
+            mMode = wanted;
+            mModeSince = now;
+        }
+        return mMode;
+    }
+
+    /** @return ms between fixes to request for a mode */
+    public static long getMinTime(int mode) {
+        return MIN_TIME[mode];
+    }
+
+    /** @return metres between fixes to request for a mode */
+    public static float getMinDistance(int mode) {
+        return MIN_DISTANCE[mode];
+    }
+
+    public static String getModeName(int mode) {
+        return MODE_NAMES[mode];
+    }
+
+    /** GPS was turned on or off, for the baseline the savings are against. */
+    public synchronized void setGpsOn(boolean on, long now) {
+        if (on && mOnSince == 0) {
+            mOnSince = now;
+            mModeSince = now;
+        } else if (!on && mOnSince != 0) {
+            mOnTime += now - mOnSince;
+            mOnSince = 0;
+        }
+    }
+
+    /** @param nanos  Time spent handling one fix */
+    public void recordFixCost(long nanos) {
+        mFixCost.record(nanos / 1000);
+    }
+
+    public synchronized long getFixCount() {
+        return mFixes;
+    }
+
+    /** @return fixes one a second would have delivered over the same time */
+    public synchronized long getBaselineFixCount(long now) {
+        return (mOnTime + (mOnSince == 0 ? 0 : now - mOnSince)) / BASELINE_INTERVAL;
+    }
+
+    /** @return wakeups avoided: baseline fixes not taken */
+    public synchronized long getSavedFixCount(long now) {
+        return Math.max(0, getBaselineFixCount(now) - mFixes);
+    }
+
+    /** @return main thread CPU avoided, us, at the measured cost per fix */
+    public long getSavedCpuMicros(long now) {
+        return (long) (getSavedFixCount(now) * mFixCost.getMean());
+    }
+
+    public LatencyHistogram getFixCost() {
+        return mFixCost;
+    }
+
+    /** @return mode, fixes and savings, for logs and dumps */
+    public synchronized String summary(long now) {
+        return "gps " + MODE_NAMES[mMode] + ", " + mFixes + " fixes of " + getBaselineFixCount(now)
+                + " at 1 Hz, saved " + getSavedFixCount(now) + " wakeups and ~"
+                + getSavedCpuMicros(now) / 1000 + " ms cpu; fix us " + mFixCost.summary();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear histogram of non-negative durations (in whatever
+ * unit the caller records).  Each power of two is split into eight
+ * buckets, so any value is off by at most 12.5%, and the whole range up
+ * to 2^40 fits in a few hundred preallocated counters.  Recording is a
+ * couple of shifts and one atomic add, safe from any number of threads.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray mTotals = new AtomicLongArray(3); /* count, sum, max */
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(value));
+        mTotals.incrementAndGet(0);
+        mTotals.addAndGet(1, value);
+        long max;
+        do {
+            max = mTotals.get(2);
+        } while (value > max && !mTotals.compareAndSet(2, max, value));
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb > MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = msb - SUB_BITS;
+        return SUB_COUNT + shift * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /* largest value that lands in a bucket */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+        long sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return mTotals.get(0);
+    }
+
+    public long getMax() {
+        return mTotals.get(2);
+    }
+
+    /** @return mean of the recorded values, 0 if there are none */
+    public double getMean() {
+        long count = mTotals.get(0);
+        return count == 0 ? 0 : (double) mTotals.get(1) / count;
+    }
+
+    /**
+     * @param fraction  0.5 for the median, 0.99 for the 99th percentile...
+     * @return a value at least that fraction of the recordings are at or
+     *         below (bucket upper bound, capped at the max), 0 if empty
+     */
+    public long getPercentile(double fraction) {
+        long count = mTotals.get(0);
+        if (count == 0) {
+            return 0;
+        }
+        long max = mTotals.get(2);
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Not atomic with respect to concurrent recording; a value recorded
+     * meanwhile may be half counted.
+     */
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            mTotals.set(i, 0);
+        }
+    }
+
+    /** @return "n=.. mean=.. p50=.. p90=.. p99=.. max=.." for logs */
+    public String summary() {
+        return "n=" + getCount() + " mean=" + Math.round(getMean())
+                + " p50=" + getPercentile(0.5) + " p90=" + getPercentile(0.9)
+                + " p99=" + getPercentile(0.99) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the time goes between a monitor sending a reading and the gauge
+ * showing it.  Four points are stamped with {@link System#nanoTime}: the
+ * socket read that returned the bytes, the parser emitting the sample,
+ * the UI handler draining it from the display mailbox, and the gauge's
+ * onDraw.  Each stage between them, and the whole trip, goes into a
+ * preallocated {@link LatencyHistogram} in microseconds.
+ *
+ * The display coalesces samples (see {@link LatestValueMailbox}), so the
+ * dispatch and draw stages follow the newest sample at each frame, which
+ * is the one the rider sees.  Nothing here allocates once set up; the
+ * stamps are plain volatile longs, and a frame that races a newer sample
+ * may pair one sample's read time with the next one's parse time.
+ */
+public class LatencyProbe {
+    public static final int STAGE_PARSE = 0;     /* socket read to sample parsed */
+    public static final int STAGE_DISPATCH = 1;  /* parsed to drained by the UI handler */
+    public static final int STAGE_DRAW = 2;      /* drained to drawn */
+    public static final int STAGE_TOTAL = 3;     /* socket read to drawn */
+    public static final int STAGES = 4;
+
+    private static final String[] STAGE_NAMES = { "parse", "dispatch", "draw", "total" };
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGES];
+
+    /* newest parsed sample, any reader thread */
+    private volatile long mReadNanos = 0;
+    private volatile long mParsedNanos = 0;
+
+    /* frame on its way to the screen, UI thread */
+    private long mFrameReadNanos;
+    private long mFrameDispatchedNanos;
+    private boolean mFramePending = false;
+
+    public LatencyProbe() {
+        for (int i = 0; i < STAGES; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Stamps the reads of one source and the samples parsed from them.
+     * Make one per source run, on the thread that reads.
+     */
+    public class Tap implements SampleListener {
+        private final SampleListener mmOutput;
+        private long mmReadNanos;
+
+        Tap(SampleListener output) {
+            mmOutput = output;
+        }
+
+        /** @return the stream, stamping each read that returns data */
+        public InputStream stamp(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int count = super.read(buffer, offset, length);
+                    mmReadNanos = System.nanoTime();
+                    return count;
+                }
+            };
+        }
+
+        public void onSample(int channel, long timestamp, float value) {
+            long now = System.nanoTime();
+            mStages[STAGE_PARSE].record((now - mmReadNanos) / 1000);
+            mReadNanos = mmReadNanos;
+            mParsedNanos = now;
+            mmOutput.onSample(channel, timestamp, value);
+        }
+    }
+
+    /**
+     * @param output  Where the parsed samples go on to
+     * @return a listener to parse into, stamping the parse stage
+     */
+    public Tap tap(SampleListener output) {
+        return new Tap(output);
+    }
+
+    /**
+     * The UI handler drained new values for a frame.  UI thread.
+     */
+    public void dispatched() {
+        long parsed = mParsedNanos;
+        if (parsed == 0) {
+            return; /* not from a tapped source */
+        }
+        long now = System.nanoTime();
+        mStages[STAGE_DISPATCH].record((now - parsed) / 1000);
+        mFrameReadNanos = mReadNanos;
+        mFrameDispatchedNanos = now;
+        mFramePending = true;
+    }
+
+    /**
+     * A gauge finished drawing; the first to draw after a dispatch closes
+     * the frame.  UI thread.
+     */
+    public void drawn() {
+        if (!mFramePending) {
+            return;
+        }
+        mFramePending = false;
+        long now = System.nanoTime();
+        mStages[STAGE_DRAW].record((now - mFrameDispatchedNanos) / 1000);
+        mStages[STAGE_TOTAL].record((now - mFrameReadNanos) / 1000);
+    }
+
+    /** @param stage  One of the STAGE_ constants */
+    public LatencyHistogram getStage(int stage) {
+        return mStages[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void clear() {
+        for (int i = 0; i < STAGES; i++) {
+            mStages[i].clear();
+        }
+    }
+
+    /** @return one line per stage, us, for the overlay and dumps */
+    public String summary() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < STAGES; i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            text.append(STAGE_NAMES[i]).append(" us ").append(mStages[i].summary());
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds only the newest value of each channel for the display.  Producers
+ * overwrite freely; the UI drains whatever is there once per frame, so a
+ * 50 Hz stream costs one redraw per frame instead of one per sample.
+ * Samples overwritten before a drain are counted as coalesced (they are
+ * still in the history, this only affects what gets drawn).
+ *
+ * The wakeup runnable is called by the producer whenever the mailbox goes
+ * from empty to non-empty, i.e. at most once per drain.
+ */
+public class LatestValueMailbox implements SampleListener {
+    private final AtomicIntegerArray mValues = new AtomicIntegerArray(Channel.COUNT);
+    /* bit per channel updated since the last drain */
+    private final AtomicInteger mPending = new AtomicInteger(0);
+
+    private final AtomicLong mPublished = new AtomicLong(0);
+    private final AtomicLong mCoalesced = new AtomicLong(0);
+    private volatile long mDrains = 0;
+
+    private volatile Runnable mWakeup = null;
+
+    public void setWakeup(Runnable wakeup) {
+        mWakeup = wakeup;
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        mValues.set(channel, Float.floatToIntBits(value));
+        mPublished.incrementAndGet();
+
+        int bit = 1 << channel;
+        int pending;
+        do {
+            pending = mPending.get();
+        } while (!mPending.compareAndSet(pending, pending | bit));
+
+        if ((pending & bit) != 0) {
+            mCoalesced.incrementAndGet();
+        }
+        if (pending == 0) {
+            Runnable wakeup = mWakeup;
+            if (wakeup != null) {
+                wakeup.run();
+            }
+        }
+    }
+
+    /**
+     * Take the newest values.  Only the entries for channels whose bit is
+     * set in the result are written.
+     * @param latest  Indexed by channel, at least {@link Channel#COUNT} long
+     * @return bit mask of the channels updated since the last drain
+     */
+    public int drain(float[] latest) {
+        int pending = mPending.getAndSet(0);
+        for (int channel = 0; channel < Channel.COUNT; channel++) {
+            if ((pending & (1 << channel)) != 0) {
+                latest[channel] = Float.intBitsToFloat(mValues.get(channel));
+            }
+        }
+        mDrains++;
+        return pending;
+    }
+
+    /** @return true if there are values nobody has drained yet */
+    public boolean isPending() {
+        return mPending.get() != 0;
+    }
+
+    /** @return samples published into the mailbox */
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    /** @return samples replaced by a newer one before being drained */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /** @return number of drain() calls, i.e. display frames */
+    public long getDrainCount() {
+        return mDrains;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming parser for the monitor's text protocol, one "name=value" pair
+ * per line (e.g. "v=38.2").  Bytes are parsed in place from a reusable line
+ * buffer straight into primitives, so once the parser is constructed it
+ * does not allocate per line.
+ *
+ * Not thread safe; each input stream gets its own parser.
+ */
+public class LineParser {
+    /* longest line we bother with, anything longer is noise */
+    private static final int MAX_LINE = 64;
+
+    /* no value we receive needs more precision than this */
+    private static final int MAX_DIGITS = 18;
+
+    private static final double[] POW10 = new double[MAX_DIGITS + 1];
+    static {
+        double p = 1;
+        for (int i = 0; i < POW10.length; i++) {
+            POW10[i] = p;
+            p *= 10;
+        }
+    }
+
+    private final SampleListener mListener;
+    private final byte[] mLine = new byte[MAX_LINE];
+    private final byte[] mReadBuffer;
+    private int mLineLength = 0;
+    private boolean mOverflow = false;
+
+    private long mSamples = 0;
+    private long mBadLines = 0;
+
+    /* scratch results of parseValue(), kept in fields to avoid boxing */
+    private float mValue;
+
+    public LineParser(SampleListener listener) {
+        this(listener, 1024);
+    }
+
+    public LineParser(SampleListener listener, int readBufferSize) {
+        mListener = listener;
+        mReadBuffer = new byte[readBufferSize];
+    }
+
+    /**
+     * Read and parse until the stream hits end of file.
+     * @param in  The stream to read, typically a bluetooth socket
+     * @throws IOException when the underlying read fails
+     */
+    public void readFrom(InputStream in) throws IOException {
+        int count;
+        while ((count = in.read(mReadBuffer)) != -1) {
+            feed(mReadBuffer, 0, count);
+        }
+    }
+
+    /**
+     * Parse a chunk of bytes.  Partial lines are kept until the rest
+     * arrives in a later call.
+     */
+    public void feed(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '\n' || b == '\r') {
+                endOfLine();
+            } else if (mLineLength < MAX_LINE) {
+                mLine[mLineLength++] = b;
+            } else {
+                mOverflow = true;
+            }
+        }
+    }
+
+    /**
+     * Parse the bytes between a buffer's position and limit in place, which
+     * for a direct buffer means without copying them onto the heap first.
+     * The position is moved up to the limit.
+     */
+    public void feed(ByteBuffer buffer) {
+        final int end = buffer.limit();
+        for (int i = buffer.position(); i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n' || b == '\r') {
+                endOfLine();
+            } else if (mLineLength < MAX_LINE) {
+                mLine[mLineLength++] = b;
+            } else {
+                mOverflow = true;
+            }
+        }
+        buffer.position(end);
+    }
+
+    /** @return number of samples delivered to the listener */
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    /** @return number of non-empty lines that could not be parsed */
+    public long getBadLineCount() {
+        return mBadLines;
+    }
+
+    private void endOfLine() {
+        int length = mLineLength;
+        boolean overflow = mOverflow;
+        mLineLength = 0;
+        mOverflow = false;
+
+        if (length == 0) {
+            /* blank line or the second half of a \r\n */
+            return;
+        }
+        if (overflow) {
+            mBadLines++;
+            return;
+        }
+
+        int i = skipSpace(0, length);
+        if (i == length) {
+            return;
+        }
+        int channel = Channel.fromKey(mLine[i]);
+        i = skipSpace(i + 1, length);
+        if (channel < 0 || i == length || mLine[i] != '=') {
+            mBadLines++;
+            return;
+        }
+        if (!parseValue(i + 1, length)) {
+            mBadLines++;
+            return;
+        }
+
+        mSamples++;
+        mListener.onSample(channel, System.currentTimeMillis(), mValue);
+    }
+
+    private int skipSpace(int i, int end) {
+        while (i < end && (mLine[i] == ' ' || mLine[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parse [-+]digits[.digits] from the line buffer into mValue.
+     * @return false if the text is not a plain decimal number
+     */
+    private boolean parseValue(int i, int end) {
+        i = skipSpace(i, end);
+
+        boolean negative = false;
+        if (i < end && (mLine[i] == '-' || mLine[i] == '+')) {
+            negative = mLine[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            int b = mLine[i];
+            if (b >= '0' && b <= '9') {
+                if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (seenPoint) {
+                        fractionDigits++;
+                    }
+                } else if (!seenPoint) {
+                    /* too many integer digits to be a real reading */
+                    return false;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0 || skipSpace(i, end) != end) {
+            return false;
+        }
+
+        double value = mantissa / POW10[fractionDigits];
+        mValue = (float) (negative ? -value : value);
+        return true;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Median of the last n samples, which ignores the odd wild reading
+ * outright instead of smearing it the way an average does.
+ *
+ * The window is kept twice: a ring in arrival order, to know which
+ * sample leaves, and a sorted copy to read the median from.  Each update
+ * binary searches the sorted copy for the leaving and the arriving
+ * sample and slides the values between the two along by one, a single
+ * arraycopy of at most n floats; for the small windows this is used with
+ * that is cheaper than any tree.
+ */
+public class MedianFilter extends SignalFilter {
+    private final float[] mWindow;
+    private final float[] mSorted;
+    private int mNext = 0;
+    private int mCount = 0;
+
+    /**
+     * @param size  Samples in the window; odd sizes have a true middle
+     */
+    public MedianFilter(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("window " + size);
+        }
+        mWindow = new float[size];
+        mSorted = new float[size];
+    }
+
+    public float filter(long timestamp, float value) {
+        if (mCount < mWindow.length) {
+            /* still filling: plain insert */
+            int at = search(value, mCount);
+            System.arraycopy(mSorted, at, mSorted, at + 1, mCount - at);
+            mSorted[at] = value;
+            mCount++;
+        } else {
+            float old = mWindow[mNext];
+            int from = search(old, mCount);
+            int to = search(value, mCount);
+            if (to > from) {
+                /* new value sorts above the old: close the gap upwards */
+                to--;
+                System.arraycopy(mSorted, from + 1, mSorted, from, to - from);
+            } else if (to < from) {
+                System.arraycopy(mSorted, to, mSorted, to + 1, from - to);
+            }
+            mSorted[to] = value;
+        }
+        mWindow[mNext] = value;
+        if (++mNext == mWindow.length) {
+            mNext = 0;
+        }
+        int middle = mCount >> 1;
+        if ((mCount & 1) != 0) {
+            return mSorted[middle];
+        }
+        return (mSorted[middle - 1] + mSorted[middle]) * 0.5f;
+    }
+
+    /**
+     * @return the first index in mSorted[0..count) holding a value >= the
+     *         one given, count if there is none
+     */
+    private int search(float value, int count) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public void reset() {
+        mNext = 0;
+        mCount = 0;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Mean of the last n samples.  A ring of the raw samples and a running
+ * sum make each update O(1); the sum is recomputed from the ring each
+ * time it wraps, so adding and subtracting can't let it drift.
+ */
+public class MovingAverageFilter extends SignalFilter {
+    private final float[] mWindow;
+    private int mNext = 0;
+    private int mCount = 0;
+    private double mSum = 0;
+
+    /**
+     * @param size  Samples averaged
+     */
+    public MovingAverageFilter(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("window " + size);
+        }
+        mWindow = new float[size];
+    }
+
+    public float filter(long timestamp, float value) {
+        if (mCount == mWindow.length) {
+            mSum -= mWindow[mNext];
+        } else {
+            mCount++;
+        }
+        mWindow[mNext] = value;
+        mSum += value;
+        if (++mNext == mWindow.length) {
+            mNext = 0;
+            if (mCount == mWindow.length) {
+                double sum = 0;
+                for (int i = 0; i < mWindow.length; i++) {
+                    sum += mWindow[i];
+                }
+                mSum = sum;
+            }
+        }
+        return (float) (mSum / mCount);
+    }
+
+    public void reset() {
+        mNext = 0;
+        mCount = 0;
+        mSum = 0;
+    }
+}
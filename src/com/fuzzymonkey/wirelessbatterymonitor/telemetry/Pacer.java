@@ -0,0 +1,47 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Keeps a source thread on schedule: sleeps until a given offset from
+ * when the pacer was created.  Waits shorter than a couple of
+ * milliseconds are skipped, so fast sources run in bursts instead of
+ * sleeping between every sample.
+ */
+final class Pacer {
+    private static final long MIN_SLEEP = 2 * 1000 * 1000; /* ns */
+
+    private final long mStart = System.nanoTime();
+
+    /**
+     * @param offset  Nanoseconds after creation this point is due
+     */
+    void waitUntil(long offset) throws InterruptedIOException {
+        long ahead = offset - (System.nanoTime() - mStart);
+        if (ahead < MIN_SLEEP) {
+            return;
+        }
+        try {
+            Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Combines the per device channels of several monitors into pack totals on
+ * the shared SPEED/VOLTAGE/CURRENT channels, so everything downstream of
+ * them (state of charge, range, the display) sees the whole vehicle.
+ *
+ * The packs are taken to share one bus: currents add up and the voltage is
+ * the mean of the devices reporting it.  Speed is passed through from
+ * whichever device sends it.  A device that has been silent for a few
+ * seconds, or whose slot was cleared, drops out of the totals.
+ *
+ * Sources come through {@link TelemetryPipeline#publish}, one at a time,
+ * which keeps the shared channels single writer for the history; the lock
+ * here is for the getters.  Totals are published after it is released, so
+ * a listener further down that takes its own lock and publishes back into
+ * the dispatcher can't deadlock against this one.
+ */
+public class PackAggregator implements SampleListener {
+    private static final long STALE = 5 * 1000;
+
+    private final SampleListener mOutput;
+
+    /* newest reading per slot and device channel, and when it came */
+    private final float[] mValue = new float[Channel.MAX_DEVICES * Channel.DEVICE_COUNT];
+    private final long[] mTime = new long[Channel.MAX_DEVICES * Channel.DEVICE_COUNT];
+
+    /**
+     * @param output  Receives the totals on the shared channels
+     */
+    public PackAggregator(SampleListener output) {
+        mOutput = output;
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        if (Channel.slotOf(channel) < 0) {
+            return;
+        }
+        int base = Channel.baseOf(channel);
+        float total;
+        synchronized (this) {
+            int index = channel - Channel.FIRST_DEVICE;
+            mValue[index] = value;
+            mTime[index] = timestamp;
+
+            switch (base) {
+            case Channel.SPEED:
+                total = value;
+                break;
+            case Channel.VOLTAGE:
+                total = mean(Channel.VOLTAGE, timestamp);
+                break;
+            case Channel.CURRENT:
+                total = sum(Channel.CURRENT, timestamp);
+                break;
+            default:
+                return;
+            }
+        }
+        mOutput.onSample(base, timestamp, total);
+    }
+
+    /**
+     * Forget a device, e.g. when its connection ends, so its last reading
+     * stops counting immediately rather than after it goes stale.
+     */
+    public synchronized void clear(int slot) {
+        for (int i = 0; i < Channel.DEVICE_COUNT; i++) {
+            mTime[slot * Channel.DEVICE_COUNT + i] = 0;
+        }
+    }
+
+    private boolean live(int index, long now) {
+        return mTime[index] != 0 && now - mTime[index] <= STALE;
+    }
+
+    private float sum(int base, long now) {
+        float total = 0;
+        for (int i = base; i < mValue.length; i += Channel.DEVICE_COUNT) {
+            if (live(i, now)) {
+                total += mValue[i];
+            }
+        }
+        return total;
+    }
+
+    private float mean(int base, long now) {
+        float total = 0;
+        int n = 0;
+        for (int i = base; i < mValue.length; i += Channel.DEVICE_COUNT) {
+            if (live(i, now)) {
+                total += mValue[i];
+                n++;
+            }
+        }
+        return n == 0 ? Float.NaN : total / n;
+    }
+
+    /** @return total pack current, amps */
+    public synchronized float getCurrent(long now) {
+        return sum(Channel.CURRENT, now);
+    }
+
+    /** @return bus voltage, NaN if no device has reported one lately */
+    public synchronized float getVoltage(long now) {
+        return mean(Channel.VOLTAGE, now);
+    }
+
+    /** @return total power, watts, each device's volts times its own amps */
+    public synchronized float getPower(long now) {
+        float total = 0;
+        for (int i = 0; i < mValue.length; i += Channel.DEVICE_COUNT) {
+            int volts = i + Channel.VOLTAGE;
+            int amps = i + Channel.CURRENT;
+            if (live(volts, now) && live(amps, now)) {
+                total += mValue[volts] * mValue[amps];
+            }
+        }
+        return total;
+    }
+
+    /** @return number of devices that have sent anything lately */
+    public synchronized int getLiveCount(long now) {
+        int count = 0;
+        for (int slot = 0; slot < Channel.MAX_DEVICES; slot++) {
+            for (int i = 0; i < Channel.DEVICE_COUNT; i++) {
+                if (live(slot * Channel.DEVICE_COUNT + i, now)) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+}
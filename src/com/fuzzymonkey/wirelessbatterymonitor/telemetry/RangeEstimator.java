@@ -0,0 +1,246 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Streams energy use and remaining range.  Voltage times current is
+ * integrated into watt hours (drawn and regenerated kept apart) and
+ * {@link Channel#FUSED_SPEED} into miles as the samples arrive;
+ * once a second the power and speed over that second are folded into
+ * exponentially weighted averages over a few time horizons, and their ratio
+ * is the Wh/mile over that horizon.  Remaining range is the energy left
+ * (from the STATE_OF_CHARGE channel) divided by the Wh/mile.
+ *
+ * Averaging power and speed separately and dividing afterwards keeps stops
+ * harmless: sitting at a light adds almost nothing to either.
+ *
+ * These are the app's only distance and energy integrals; the trip
+ * odometers ({@link TripLedger}) are kept from the totals here.
+ *
+ * Constant work per sample.  Publishes {@link Channel#WH_PER_MILE} and
+ * {@link Channel#RANGE} at most once a second, after releasing its lock.
+ */
+public class RangeEstimator implements SampleListener {
+    /* EWMA time constants */
+    public static final int HORIZON_SHORT = 0;  /* last minute or so, "right now" */
+    public static final int HORIZON_MEDIUM = 1; /* this stretch of the ride */
+    public static final int HORIZON_LONG = 2;   /* the whole ride */
+    private static final double[] HORIZON_TAU = { 60 * 1000, 10 * 60 * 1000, 60 * 60 * 1000 };
+
+    /* the horizon range is projected from */
+    private static final int RANGE_HORIZON = HORIZON_MEDIUM;
+
+    private static final long MAX_GAP = 10 * 1000;        /* don't integrate across dropouts */
+    private static final long UPDATE_INTERVAL = 1000;
+    private static final double MIN_MPH = 0.5;            /* below this average Wh/mile is noise */
+    private static final double MS_PER_HOUR = 3600.0 * 1000;
+
+    private final double mPackWh;
+    private final SampleListener mOutput;
+
+    /* compensated, so millions of tiny trapezoids don't vanish into a
+       large total */
+    private final CompensatedSum mWhUsed = new CompensatedSum();
+    private final CompensatedSum mWhRegen = new CompensatedSum();
+    private final CompensatedSum mMiles = new CompensatedSum();
+
+    private float mVolts = Float.NaN;
+    private float mLastPower = 0;
+    private long mLastPowerTime = 0;
+    private float mLastSpeed = 0;
+    private long mLastSpeedTime = 0;
+    private float mPercent = Float.NaN;
+
+    /* totals at the last update, to difference against */
+    private long mLastUpdate = 0;
+    private double mUpdateWh = 0;
+    private double mUpdateMiles = 0;
+    private final double[] mPower = new double[HORIZON_TAU.length]; /* watts */
+    private final double[] mSpeed = new double[HORIZON_TAU.length]; /* mph */
+    private boolean mPrimed = false;
+
+    /**
+     * @param capacityAh    Usable pack capacity
+     * @param nominalVolts  Pack nominal voltage, to turn amp hours into Wh
+     * @param output        Receives the WH_PER_MILE and RANGE samples
+     */
+    public RangeEstimator(double capacityAh, double nominalVolts, SampleListener output) {
+        mPackWh = capacityAh * nominalVolts;
+        mOutput = output;
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        float whPerMile;
+        float range;
+        synchronized (this) {
+            if (!add(channel, timestamp, value)) {
+                return;
+            }
+            whPerMile = getWhPerMile(RANGE_HORIZON);
+            range = getRange();
+        }
+        mOutput.onSample(Channel.WH_PER_MILE, timestamp, whPerMile);
+        mOutput.onSample(Channel.RANGE, timestamp, range);
+    }
+
+    /** @return true if the averages were updated and should be published */
+    private boolean add(int channel, long timestamp, float value) {
+        switch (channel) {
+        case Channel.VOLTAGE:
+            mVolts = value;
+            break;
+        case Channel.CURRENT:
+            onCurrent(timestamp, value);
+            break;
+        case Channel.FUSED_SPEED:
+            onSpeed(timestamp, value);
+            break;
+        case Channel.STATE_OF_CHARGE:
+            mPercent = value;
+            return false;
+        default:
+            return false;
+        }
+        if (mLastUpdate == 0) {
+            mLastUpdate = timestamp;
+        } else if (timestamp - mLastUpdate >= UPDATE_INTERVAL) {
+            return update(timestamp);
+        }
+        return false;
+    }
+
+    private void onCurrent(long timestamp, float amps) {
+        if (mVolts != mVolts) { /* NaN: no voltage yet */
+            return;
+        }
+        float power = mVolts * amps;
+        long dt = timestamp - mLastPowerTime;
+        if (mLastPowerTime != 0 && dt > 0 && dt <= MAX_GAP) {
+            double hours = dt / MS_PER_HOUR;
+            float p0 = mLastPower;
+            float p1 = power;
+            if (p0 >= 0 && p1 >= 0) {
+                mWhUsed.add((p0 + p1) * 0.5 * hours);
+            } else if (p0 <= 0 && p1 <= 0) {
+                mWhRegen.add(-(p0 + p1) * 0.5 * hours);
+            } else {
+                /* the line crosses zero part way: split the trapezoid into
+                   the triangle either side, so a swing from drive to regen
+                   doesn't cancel itself out */
+                double cross = p0 / (double) (p0 - p1); /* fraction of dt before zero */
+                double before = p0 * 0.5 * cross * hours;
+                double after = p1 * 0.5 * (1 - cross) * hours;
+                if (p0 > 0) {
+                    mWhUsed.add(before);
+                    mWhRegen.add(-after);
+                } else {
+                    mWhRegen.add(-before);
+                    mWhUsed.add(after);
+                }
+            }
+        }
+        mLastPower = power;
+        mLastPowerTime = timestamp;
+    }
+
+    private void onSpeed(long timestamp, float mph) {
+        long dt = timestamp - mLastSpeedTime;
+        if (mLastSpeedTime != 0 && dt > 0 && dt <= MAX_GAP) {
+            double miles = (mLastSpeed + mph) * 0.5 * dt / MS_PER_HOUR;
+            if (miles > 0) {
+                mMiles.add(miles);
+            }
+        }
+        mLastSpeed = mph;
+        mLastSpeedTime = timestamp;
+    }
+
+    private boolean update(long timestamp) {
+        long dt = timestamp - mLastUpdate;
+        double wh = mWhUsed.get() - mWhRegen.get();
+        double miles = mMiles.get();
+        double hours = dt / MS_PER_HOUR;
+        double power = (wh - mUpdateWh) / hours;
+        double speed = (miles - mUpdateMiles) / hours;
+        mLastUpdate = timestamp;
+        mUpdateWh = wh;
+        mUpdateMiles = miles;
+        if (dt > MAX_GAP) {
+            return false; /* a dropout says nothing about consumption */
+        }
+
+        for (int i = 0; i < HORIZON_TAU.length; i++) {
+            if (!mPrimed) {
+                mPower[i] = power;
+                mSpeed[i] = speed;
+            } else {
+                double alpha = 1 - Math.exp(-dt / HORIZON_TAU[i]);
+                mPower[i] += (power - mPower[i]) * alpha;
+                mSpeed[i] += (speed - mSpeed[i]) * alpha;
+            }
+        }
+        mPrimed = true;
+        return true;
+    }
+
+    /**
+     * @param horizon  One of the HORIZON_ constants
+     * @return average Wh/mile over that horizon, NaN while barely moving
+     */
+    public synchronized float getWhPerMile(int horizon) {
+        if (!mPrimed || mSpeed[horizon] < MIN_MPH) {
+            return Float.NaN;
+        }
+        return (float) (mPower[horizon] / mSpeed[horizon]);
+    }
+
+    /**
+     * @return miles left at the recent rate of use, NaN until both the
+     *         state of charge and a Wh/mile figure are known
+     */
+    public synchronized float getRange() {
+        float whPerMile = getWhPerMile(RANGE_HORIZON);
+        if (mPercent != mPercent || whPerMile != whPerMile) {
+            return Float.NaN;
+        }
+        if (whPerMile <= 0) {
+            return Float.POSITIVE_INFINITY; /* coasting downhill or regenerating */
+        }
+        return (float) (mPercent / 100.0 * mPackWh / whPerMile);
+    }
+
+    /** @return net watt hours drawn from the pack since start, regen subtracted */
+    public synchronized double getWattHours() {
+        return mWhUsed.get() - mWhRegen.get();
+    }
+
+    /** @return watt hours drawn from the pack since start */
+    public synchronized double getWhUsed() {
+        return mWhUsed.get();
+    }
+
+    /** @return watt hours put back by regeneration since start */
+    public synchronized double getWhRegenerated() {
+        return mWhRegen.get();
+    }
+
+    /** @return miles travelled since start */
+    public synchronized double getMiles() {
+        return mMiles.get();
+    }
+}
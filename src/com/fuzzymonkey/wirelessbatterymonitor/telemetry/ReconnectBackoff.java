@@ -0,0 +1,64 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts: exponential from a short base up to
+ * a cap, with "equal jitter" (a random point in the upper half of the
+ * window) so several monitors that dropped together don't retry in lock
+ * step and fight over the radio.  The first retry comes quickly, since a
+ * link lost to a bump usually comes straight back.
+ */
+public class ReconnectBackoff {
+    private final long mBase;
+    private final long mMax;
+    private final Random mRandom = new Random();
+    private int mAttempts = 0;
+
+    /**
+     * @param base  Window of the first retry, ms
+     * @param max   Largest window, ms
+     */
+    public ReconnectBackoff(long base, long max) {
+        mBase = base;
+        mMax = max;
+    }
+
+    /** @return how long to wait before the next attempt, ms */
+    public long nextDelay() {
+        long window = mMax;
+        if (mAttempts < 30 && (mBase << mAttempts) < mMax) {
+            window = mBase << mAttempts;
+        }
+        mAttempts++;
+        long half = window / 2;
+        return half + (long) (mRandom.nextDouble() * (window - half));
+    }
+
+    /** @return delays handed out since the last reset */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Back to short delays, once a connection has proven itself. */
+    public void reset() {
+        mAttempts = 0;
+    }
+}
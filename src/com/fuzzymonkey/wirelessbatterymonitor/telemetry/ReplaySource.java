@@ -0,0 +1,149 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Plays recorded {@link SegmentRecorder} files back as if the ride were
+ * happening now, at a chosen multiple of real time.  Timestamps keep their
+ * recorded spacing, shifted to start at the moment playback starts, so
+ * integrating consumers (state of charge, range) see the original ride;
+ * only the wall clock between samples is compressed.
+ *
+ * Pauses are the exception: a directory can hold rides days apart, and
+ * even one ride has stops with the monitor off.  A pause plays as at
+ * most MAX_PAUSE of wall clock, and comes out as at most BREAK in the
+ * timestamps, still long enough that every consumer sees a dropout
+ * rather than integrating across it.
+ *
+ * Rides record both the pack totals and each device's own channels.  By
+ * default the totals are replayed, which also covers recordings from
+ * before multi-device support; pass a slot to replay one device.
+ */
+public class ReplaySource implements TelemetrySource {
+    private static final long MAX_PAUSE = 2 * 1000 * 1000 * 1000L; /* ns of wall clock */
+    private static final long BREAK = 60 * 1000;                     /* ms of timestamps */
+
+    private final File mPath;
+    private final double mSpeed;
+    private final int mSlot;
+    private volatile boolean mClosed = false;
+    private File[] mFiles;
+    private Thread mThread = null; /* running run(), for close() to wake */
+
+    /**
+     * @param path   A segment file, or a directory of them to play oldest
+     *               first
+     * @param speed  Multiple of real time, 0 for as fast as possible
+     * @param slot   Device slot to replay, -1 for the pack totals
+     */
+    public ReplaySource(File path, double speed, int slot) {
+        mPath = path;
+        mSpeed = speed;
+        mSlot = slot;
+    }
+
+    public String getId() {
+        return "replay:" + mPath.getPath();
+    }
+
+    public String getName() {
+        return "replay " + mPath.getName();
+    }
+
+    public void open() throws IOException {
+        mFiles = mPath.isDirectory() ? SegmentReader.list(mPath) : new File[] { mPath };
+        if (mFiles.length == 0 || !mFiles[0].exists()) {
+            throw new FileNotFoundException("no segments in " + mPath);
+        }
+    }
+
+    public void run(SampleListener listener) throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mThread = Thread.currentThread();
+        }
+        try {
+            play(listener);
+        } catch (IOException e) {
+            /* interrupted by close(): a wait, or even mapping a file */
+            if (!mClosed) {
+                throw e;
+            }
+        } finally {
+            synchronized (this) {
+                mThread = null;
+                /* close() may have interrupted us after the last wait */
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private void play(SampleListener listener) throws IOException {
+        Pacer pacer = new Pacer();
+        long now = System.currentTimeMillis();
+        long last = -1;
+        long played = 0; /* ms of recording so far, breaks shortened */
+        long paced = 0;  /* ns of wall clock it should have taken */
+        for (int f = 0; f < mFiles.length && !mClosed; f++) {
+            SegmentReader reader = new SegmentReader(mFiles[f]);
+            int count = reader.getCount();
+            for (int i = 0; i < count && !mClosed; i++) {
+                int channel = map(reader.getChannel(i));
+                if (channel < 0) {
+                    continue;
+                }
+                long timestamp = reader.getTimestamp(i);
+                if (last >= 0 && timestamp > last) {
+                    long gap = timestamp - last;
+                    played += Math.min(gap, BREAK);
+                    if (mSpeed > 0) {
+                        paced += Math.min((long) (gap * 1e6 / mSpeed), MAX_PAUSE);
+                    }
+                }
+                last = timestamp;
+                if (mSpeed > 0) {
+                    pacer.waitUntil(paced);
+                }
+                listener.onSample(channel, now + played, reader.getValue(i));
+            }
+        }
+    }
+
+    /* recorded channel to device channel, -1 to skip */
+    private int map(int channel) {
+        if (mSlot < 0) {
+            return channel < Channel.DEVICE_COUNT ? channel : -1;
+        }
+        return Channel.slotOf(channel) == mSlot ? Channel.baseOf(channel) : -1;
+    }
+
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            if (mThread != null) {
+                mThread.interrupt(); /* out of a long wait now, not after it */
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ships recorded rides to the fleet server in the background.  Segment
+ * records are cut into chunks, each compressed with
+ * {@link ColumnarEncoder} and POSTed on its own; the server is told the
+ * ride (segment name), the record offset and the count, so a chunk sent
+ * twice can be recognised.  The offset reached in each segment is
+ * checkpointed to a small file after the server acknowledges a chunk:
+ * uploads resume where they stopped and every record is delivered at
+ * least once.
+ *
+ * The uploader keeps to a byte rate budget, runs on a minimum priority
+ * thread and backs off when the server is unreachable, so it never gets
+ * in the way of live ingest.  Only full chunks are taken from the newest
+ * segment, which the recorder may still be writing; its tail goes up once
+ * a newer segment exists or {@link #setFlushNewest} says the recording
+ * has stopped.
+ */
+public class RideUploader {
+    public static final String CHECKPOINT = "upload.offsets";
+    public static final int CHUNK_RECORDS = 8192;
+    public static final String CONTENT_TYPE = "application/x-wbmz";
+
+    private static final long IDLE_WAIT = 30 * 1000;   /* ms between scans with nothing to do */
+    private static final int TIMEOUT = 15 * 1000;
+    /* ms stop() waits for a chunk in flight; it may be called on the main
+       thread, and a chunk cut off is simply sent again next time */
+    private static final long STOP_TIMEOUT = 1000;
+    /* ms unwritten before a fully sent segment that isn't the newest is
+       done with, in case data is being ingested out of order */
+    private static final long FINISHED_AGE = 10 * 60 * 1000;
+
+    private final File mDirectory;
+    private final URL mUrl;
+    private final Map<String, Integer> mOffsets = new HashMap<String, Integer>();
+    /* segments sent in full that the recorder won't add to again, so scans
+       skip them without even reading the header; upload thread only */
+    private final Set<String> mFinished = new HashSet<String>();
+    private final ReconnectBackoff mBackoff = new ReconnectBackoff(2 * 1000, 5 * 60 * 1000);
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+    private volatile boolean mFlushNewest = false;
+    private volatile long mBytesPerSecond;
+
+    /* metrics */
+    private final LatencyHistogram mChunkLatency = new LatencyHistogram();
+    private volatile long mChunks = 0;
+    private volatile long mSamples = 0;
+    private volatile long mBytes = 0;
+    private volatile long mFailures = 0;
+    private volatile long mBusyNanos = 0;
+
+    /**
+     * @param directory      The recorder's directory
+     * @param url            Endpoint chunks are POSTed to
+     * @param bytesPerSecond Upload budget, 0 for unlimited
+     */
+    public RideUploader(File directory, URL url, long bytesPerSecond) {
+        mDirectory = directory;
+        mUrl = url;
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized void start() {
+        loadCheckpoint();
+        mRunning = true;
+        mThread = new Thread("RideUploader") {
+            public void run() {
+                loop();
+            }
+        };
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop after the chunk in flight, if any, waiting for it at most
+     * STOP_TIMEOUT.  A chunk still in flight after that finishes on its
+     * own; if it doesn't make it, it is sent again from the checkpoint.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /** Look for new data now instead of at the next scan. */
+    public void wake() {
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /** Change the byte rate budget, e.g. lower while devices are live. */
+    public void setRateLimit(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Upload the newest segment's tail too; the recorder has stopped. */
+    public void setFlushNewest(boolean flush) {
+        mFlushNewest = flush;
+        wake();
+    }
+
+    private void loop() {
+        while (mRunning) {
+            long wait;
+            try {
+                wait = uploadPending() ? 0 : IDLE_WAIT;
+                mBackoff.reset();
+            } catch (IOException e) {
+                mFailures++;
+                wait = mBackoff.nextDelay();
+            }
+            if (wait > 0 && mRunning) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    /* woken */
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the next chunk, if there is one.
+     * @return true if a chunk was sent, false if everything is up
+     * @throws IOException when the server couldn't be reached or refused
+     */
+    boolean uploadPending() throws IOException {
+        File[] segments = SegmentReader.list(mDirectory);
+        for (int i = 0; i < segments.length; i++) {
+            File segment = segments[i];
+            boolean newest = i == segments.length - 1;
+            if (mFinished.contains(segment.getName())) {
+                continue;
+            }
+            /* the header alone says whether there's anything to send; only
+               map the file once there is */
+            int total;
+            try {
+                total = SegmentReader.readCount(segment);
+            } catch (IOException e) {
+                /* not ours, or torn; nothing to send */
+                finished(segment, newest);
+                continue;
+            }
+            int offset = getOffset(segment.getName());
+            int available = total - offset;
+            if (available <= 0) {
+                finished(segment, newest);
+                continue;
+            }
+            if (newest && !mFlushNewest && available < CHUNK_RECORDS) {
+                continue;
+            }
+            int count = Math.min(available, CHUNK_RECORDS);
+            byte[] chunk = encode(new SegmentReader(segment), offset, count);
+            throttle(chunk.length);
+            if (!mRunning) {
+                return false; /* stopped while throttling; don't start a post */
+            }
+            long start = System.nanoTime();
+            post(segment.getName(), offset, count, chunk);
+            long elapsed = System.nanoTime() - start;
+            mChunkLatency.record(elapsed / 1000000);
+            mBusyNanos += elapsed;
+            mChunks++;
+            mSamples += count;
+            mBytes += chunk.length;
+            setOffset(segment.getName(), offset + count);
+            return true;
+        }
+        return false;
+    }
+
+    private void finished(File segment, boolean newest) {
+        if (!newest && System.currentTimeMillis() - segment.lastModified() > FINISHED_AGE) {
+            mFinished.add(segment.getName());
+        }
+    }
+
+    private static byte[] encode(SegmentReader reader, int offset, int count) throws IOException {
+        ColumnarEncoder encoder = new ColumnarEncoder();
+        for (int i = offset; i < offset + count; i++) {
+            encoder.onSample(reader.getChannel(i), reader.getTimestamp(i), reader.getValue(i));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoder.getByteLength());
+        encoder.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    /* sleep long enough that this chunk keeps us within the budget */
+    private void throttle(int length) {
+        long rate = mBytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(length * 1000L / rate);
+        } catch (InterruptedException e) {
+            /* a wake, or stop; the caller checks which */
+        }
+    }
+
+    private void post(String ride, int offset, int count, byte[] chunk) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(chunk.length);
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty("X-Ride", ride);
+            connection.setRequestProperty("X-Offset", Integer.toString(offset));
+            connection.setRequestProperty("X-Count", Integer.toString(count));
+            OutputStream out = connection.getOutputStream();
+            out.write(chunk);
+            out.close();
+            int status = connection.getResponseCode();
+            /* 409: the server already has this chunk from an earlier try */
+            if ((status < 200 || status >= 300) && status != HttpURLConnection.HTTP_CONFLICT) {
+                throw new IOException("upload of " + ride + "@" + offset + " got HTTP " + status);
+            }
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                while (in.read() != -1) {
+                    /* drain so the connection can be reused */
+                }
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /* the checkpoint is only touched by the upload thread, and by start() before it runs */
+    private int getOffset(String ride) {
+        Integer offset = mOffsets.get(ride);
+        return offset == null ? 0 : offset;
+    }
+
+    private void setOffset(String ride, int offset) throws IOException {
+        mOffsets.put(ride, offset);
+        /* write then rename, so a crash leaves the old or the new file */
+        File temp = new File(mDirectory, CHECKPOINT + ".tmp");
+        PrintWriter out = new PrintWriter(new FileWriter(temp));
+        for (Map.Entry<String, Integer> entry : mOffsets.entrySet()) {
+            if (new File(mDirectory, entry.getKey()).exists()) {
+                out.println(entry.getKey() + " " + entry.getValue());
+            }
+        }
+        out.close();
+        if (out.checkError() || !temp.renameTo(new File(mDirectory, CHECKPOINT))) {
+            throw new IOException("can't write " + CHECKPOINT);
+        }
+    }
+
+    private void loadCheckpoint() {
+        mOffsets.clear();
+        File file = new File(mDirectory, CHECKPOINT);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.lastIndexOf(' ');
+                    if (space > 0) {
+                        mOffsets.put(line.substring(0, space), Integer.parseInt(line.substring(space + 1)));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            /* start over; the server sees some chunks twice */
+        } catch (NumberFormatException e) {
+            /* same */
+        }
+    }
+
+    /** @return ms per chunk, request to response */
+    public LatencyHistogram getChunkLatency() {
+        return mChunkLatency;
+    }
+
+    public long getChunkCount() {
+        return mChunks;
+    }
+
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    public long getFailureCount() {
+        return mFailures;
+    }
+
+    /** @return compressed bytes sent per sample */
+    public double getBytesPerSample() {
+        return mSamples == 0 ? 0 : (double) mBytes / mSamples;
+    }
+
+    /** @return samples per second while actually sending, throttle waits excluded */
+    public double getThroughput() {
+        return mBusyNanos == 0 ? 0 : mSamples * 1e9 / mBusyNanos;
+    }
+}
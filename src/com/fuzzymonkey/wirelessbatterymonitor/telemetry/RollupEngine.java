@@ -0,0 +1,229 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Keeps min, max, sum, count and last value of every channel at 1 second,
+ * 1 minute and 1 hour resolution, updated as samples arrive.  Each tier is
+ * a ring of preallocated buckets, so an update is a few array stores per
+ * tier and memory never grows.
+ *
+ * A query covers as much of its window as it can with whole buckets from
+ * the coarsest tier that still holds that time, and fills the ragged ends
+ * from the next finer tier, so "the last hour" costs about a hundred
+ * bucket reads rather than a rescan of the samples.  Window ends are
+ * rounded out to whole buckets: seconds normally, or the coarser tier's
+ * buckets once the finer tiers have forgotten that time.
+ *
+ * A channel's tiers are allocated when it first publishes, so device
+ * slots that never connect cost nothing.
+ */
+public class RollupEngine implements SampleListener {
+    public static final long SECOND = 1000;
+    public static final long MINUTE = 60 * SECOND;
+    public static final long HOUR = 60 * MINUTE;
+
+    /* finest first */
+    private static final long[] RESOLUTION = { SECOND, MINUTE, HOUR };
+    private static final int[] RETENTION = {
+        30 * 60,  /* half an hour of seconds */
+        24 * 60,  /* a day of minutes */
+        31 * 24   /* a month of hours */
+    };
+
+    private final ChannelRollup[] mChannels = new ChannelRollup[Channel.COUNT];
+
+    public void onSample(int channel, long timestamp, float value) {
+        ChannelRollup rollup = mChannels[channel];
+        if (rollup == null) {
+            rollup = create(channel);
+        }
+        synchronized (rollup) {
+            for (int tier = 0; tier < RESOLUTION.length; tier++) {
+                rollup.mTiers[tier].add(timestamp, value);
+            }
+        }
+    }
+
+    /**
+     * Summarise a channel over from <= t < to.
+     * @param out  Cleared and filled in
+     */
+    public void query(int channel, long from, long to, RollupStats out) {
+        out.clear();
+        ChannelRollup rollup = mChannels[channel];
+        if (rollup == null) {
+            return; /* nothing published on it yet */
+        }
+        synchronized (rollup) {
+            /* start with the coarsest tier that still remembers 'from' */
+            int tier = RESOLUTION.length - 1;
+            while (tier > 0 && !rollup.mTiers[tier].covers(from)) {
+                tier--;
+            }
+            rollup.query(tier, from, to, out);
+        }
+    }
+
+    /* the tiers are reached through final fields, so a reader that sees
+       the new reference without this lock sees them filled in; their
+       contents are guarded by the rollup's own lock */
+    private synchronized ChannelRollup create(int channel) {
+        ChannelRollup rollup = mChannels[channel];
+        if (rollup == null) {
+            rollup = new ChannelRollup();
+            mChannels[channel] = rollup;
+        }
+        return rollup;
+    }
+
+    private static class ChannelRollup {
+        final Tier[] mTiers = new Tier[RESOLUTION.length];
+
+        ChannelRollup() {
+            for (int i = 0; i < mTiers.length; i++) {
+                mTiers[i] = new Tier(RESOLUTION[i], RETENTION[i]);
+            }
+        }
+
+        /**
+         * Whole buckets of this tier for the middle of the window, the next
+         * finer tier for the ends if it still has them (otherwise the end
+         * buckets of this tier are used whole).  Merges in time order so
+         * 'last' comes out right.
+         */
+        void query(int tier, long from, long to, RollupStats out) {
+            if (from >= to) {
+                return;
+            }
+            Tier t = mTiers[tier];
+            if (tier == 0 || !mTiers[tier - 1].covers(from)) {
+                t.merge(t.bucketOf(from), t.bucketOf(to - 1) + 1, out);
+                return;
+            }
+            long firstWhole = t.bucketOf(from + t.mResolution - 1);
+            long endWhole = t.bucketOf(to);
+            if (firstWhole >= endWhole) {
+                query(tier - 1, from, to, out);
+                return;
+            }
+            query(tier - 1, from, firstWhole * t.mResolution, out);
+            t.merge(firstWhole, endWhole, out);
+            query(tier - 1, endWhole * t.mResolution, to, out);
+        }
+    }
+
+    /**
+     * One resolution for one channel.  Bucket ids are timestamp divided by
+     * the resolution; a bucket's slot is its id modulo the ring size, and
+     * the id stored in the slot tells whether it holds that bucket or an
+     * older one that has since been lapped.
+     */
+    private static class Tier {
+        final long mResolution;
+        final long[] mId;
+        final int[] mCount;
+        final float[] mMin;
+        final float[] mMax;
+        final double[] mSum;
+        final float[] mLast;
+        boolean mEmpty = true;
+        long mNewest = 0;
+
+        Tier(long resolution, int buckets) {
+            mResolution = resolution;
+            mId = new long[buckets];
+            mCount = new int[buckets];
+            mMin = new float[buckets];
+            mMax = new float[buckets];
+            mSum = new double[buckets];
+            mLast = new float[buckets];
+            for (int i = 0; i < buckets; i++) {
+                mId[i] = Long.MIN_VALUE;
+            }
+        }
+
+        long bucketOf(long timestamp) {
+            /* floor, so negative times still land in the right bucket */
+            long id = timestamp / mResolution;
+            return (timestamp % mResolution < 0) ? id - 1 : id;
+        }
+
+        int slotOf(long id) {
+            int slot = (int) (id % mId.length);
+            return slot < 0 ? slot + mId.length : slot;
+        }
+
+        void add(long timestamp, float value) {
+            long id = bucketOf(timestamp);
+            if (!mEmpty && id <= mNewest - mId.length) {
+                return; /* older than anything we still keep */
+            }
+            int slot = slotOf(id);
+            if (mId[slot] != id) {
+                mId[slot] = id;
+                mCount[slot] = 0;
+                mMin[slot] = value;
+                mMax[slot] = value;
+                mSum[slot] = 0;
+            }
+            mCount[slot]++;
+            if (value < mMin[slot]) {
+                mMin[slot] = value;
+            }
+            if (value > mMax[slot]) {
+                mMax[slot] = value;
+            }
+            mSum[slot] += value;
+            mLast[slot] = value;
+            if (mEmpty || id > mNewest) {
+                mNewest = id;
+                mEmpty = false;
+            }
+        }
+
+        /** @return true if the bucket holding 'from' is still retained */
+        boolean covers(long from) {
+            return !mEmpty && bucketOf(from) > mNewest - mId.length;
+        }
+
+        void merge(long firstId, long endId, RollupStats out) {
+            if (mEmpty) {
+                return;
+            }
+            /* only walk buckets we can still hold */
+            firstId = Math.max(firstId, mNewest - mId.length + 1);
+            endId = Math.min(endId, mNewest + 1);
+            for (long id = firstId; id < endId; id++) {
+                int slot = slotOf(id);
+                if (mId[slot] != id || mCount[slot] == 0) {
+                    continue;
+                }
+                out.count += mCount[slot];
+                out.sum += mSum[slot];
+                if (mMin[slot] < out.min) {
+                    out.min = mMin[slot];
+                }
+                if (mMax[slot] > out.max) {
+                    out.max = mMax[slot];
+                }
+                out.last = mLast[slot];
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Summary of a channel over some time window, filled in by
+ * {@link RollupEngine#query}.  Public fields like android.graphics.PointF,
+ * so one instance can be reused for every query.
+ */
+public class RollupStats {
+    public int count;
+    public float min;
+    public float max;
+    public double sum;
+    public float last;
+
+    public void clear() {
+        count = 0;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+        sum = 0;
+        last = Float.NaN;
+    }
+
+    /** @return the mean, or NaN if the window had no samples */
+    public double mean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+}
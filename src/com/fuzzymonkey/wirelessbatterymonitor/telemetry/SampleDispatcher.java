@@ -0,0 +1,55 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Fans each sample out to every registered listener, in registration
+ * order.  Listeners can be added and removed from any thread; the sample
+ * path only ever reads an immutable array.
+ */
+public class SampleDispatcher implements SampleListener {
+    private volatile SampleListener[] mListeners = new SampleListener[0];
+
+    public synchronized void add(SampleListener listener) {
+        SampleListener[] old = mListeners;
+        SampleListener[] listeners = new SampleListener[old.length + 1];
+        System.arraycopy(old, 0, listeners, 0, old.length);
+        listeners[old.length] = listener;
+        mListeners = listeners;
+    }
+
+    public synchronized void remove(SampleListener listener) {
+        SampleListener[] old = mListeners;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == listener) {
+                SampleListener[] listeners = new SampleListener[old.length - 1];
+                System.arraycopy(old, 0, listeners, 0, i);
+                System.arraycopy(old, i + 1, listeners, i, old.length - i - 1);
+                mListeners = listeners;
+                return;
+            }
+        }
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        SampleListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onSample(channel, timestamp, value);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Receives parsed telemetry samples.  Implementations are called on the
+ * thread that produced the sample (usually the bluetooth read thread), so
+ * they must be quick and must not block.
+ */
+public interface SampleListener {
+    /**
+     * @param channel    One of the {@link Channel} ids
+     * @param timestamp  Wall clock time of the sample in milliseconds
+     * @param value      The sample value
+     */
+    void onSample(int channel, long timestamp, float value);
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded hand-off of samples from any number of producer threads to one
+ * consumer thread, stored in primitive arrays.  offer() never blocks or
+ * allocates: when the queue is full the sample is dropped and counted.
+ *
+ * Each slot carries a sequence number that tells producers and the
+ * consumer whose turn it is (the usual bounded MPMC array queue, with the
+ * consumer side simplified to a single thread).
+ */
+public class SampleQueue {
+    private final int[] mChannels;
+    private final long[] mTimes;
+    private final float[] mValues;
+    private final AtomicLongArray mSequence;
+    private final int mMask;
+
+    private final AtomicLong mTail = new AtomicLong(0);
+    private long mHead = 0; /* consumer thread only */
+    private final AtomicLong mDropped = new AtomicLong(0);
+
+    /**
+     * @param capacity  Rounded up to a power of two
+     */
+    public SampleQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mChannels = new int[size];
+        mTimes = new long[size];
+        mValues = new float[size];
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Queue a sample from any thread.
+     * @return false if the queue was full and the sample was dropped
+     */
+    public boolean offer(int channel, long timestamp, float value) {
+        while (true) {
+            long tail = mTail.get();
+            int slot = (int) tail & mMask;
+            long diff = mSequence.get(slot) - tail;
+            if (diff == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mChannels[slot] = channel;
+                    mTimes[slot] = timestamp;
+                    mValues[slot] = value;
+                    mSequence.set(slot, tail + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                /* the consumer hasn't freed this slot yet */
+                mDropped.incrementAndGet();
+                return false;
+            }
+            /* else another producer took the slot, try the next one */
+        }
+    }
+
+    /**
+     * Hand up to max queued samples to the listener, oldest first.  Only
+     * call from the one consumer thread.
+     * @return number of samples drained
+     */
+    public int drainTo(SampleListener listener, int max) {
+        int count = 0;
+        while (count < max) {
+            long head = mHead;
+            int slot = (int) head & mMask;
+            if (mSequence.get(slot) != head + 1) {
+                break; /* empty, or the producer is mid-write */
+            }
+            int channel = mChannels[slot];
+            long timestamp = mTimes[slot];
+            float value = mValues[slot];
+            mSequence.set(slot, head + mMask + 1);
+            mHead = head + 1;
+            listener.onSample(channel, timestamp, value);
+            count++;
+        }
+        return count;
+    }
+
+    /** @return samples refused because the queue was full */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
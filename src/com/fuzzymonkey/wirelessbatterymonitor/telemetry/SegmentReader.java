@@ -0,0 +1,133 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads back segment files written by {@link SegmentRecorder}.
+ */
+public class SegmentReader {
+    private final MappedByteBuffer mBuffer;
+    private final long mStartTime;
+    private final int mCount;
+
+    /**
+     * @throws IOException if the file can't be read or isn't a segment
+     */
+    public SegmentReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mBuffer.capacity() < SegmentRecorder.HEADER_SIZE
+                || mBuffer.getInt(0) != SegmentRecorder.MAGIC
+                || mBuffer.getShort(SegmentRecorder.OFFSET_RECORD_SIZE) != SegmentRecorder.RECORD_SIZE) {
+            throw new IOException("not a telemetry segment: " + file);
+        }
+        mStartTime = mBuffer.getLong(SegmentRecorder.OFFSET_START_TIME);
+        int room = (mBuffer.capacity() - SegmentRecorder.HEADER_SIZE) / SegmentRecorder.RECORD_SIZE;
+        mCount = Math.min(mBuffer.getInt(SegmentRecorder.OFFSET_COUNT), room);
+    }
+
+    /**
+     * Read just the header, for when only the record count is wanted:
+     * no mapping, so it's cheap to ask of every file in a directory.
+     *
+     * @return number of records in the segment
+     * @throws IOException if the file can't be read or isn't a segment
+     */
+    public static int readCount(File file) throws IOException {
+        byte[] header = new byte[SegmentRecorder.HEADER_SIZE];
+        long length;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            length = raf.length();
+            if (length < header.length) {
+                throw new IOException("not a telemetry segment: " + file);
+            }
+            raf.readFully(header);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != SegmentRecorder.MAGIC
+                || buffer.getShort(SegmentRecorder.OFFSET_RECORD_SIZE) != SegmentRecorder.RECORD_SIZE) {
+            throw new IOException("not a telemetry segment: " + file);
+        }
+        long room = (length - SegmentRecorder.HEADER_SIZE) / SegmentRecorder.RECORD_SIZE;
+        return (int) Math.min(buffer.getInt(SegmentRecorder.OFFSET_COUNT), room);
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /** @return number of records in the segment */
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getTimestamp(int index) {
+        return mBuffer.getLong(SegmentRecorder.HEADER_SIZE + index * SegmentRecorder.RECORD_SIZE);
+    }
+
+    public int getChannel(int index) {
+        return mBuffer.getInt(SegmentRecorder.HEADER_SIZE + index * SegmentRecorder.RECORD_SIZE + 8);
+    }
+
+    public float getValue(int index) {
+        return mBuffer.getFloat(SegmentRecorder.HEADER_SIZE + index * SegmentRecorder.RECORD_SIZE + 12);
+    }
+
+    /**
+     * Hand every record to the listener, in the order written.
+     */
+    public void replay(SampleListener listener) {
+        for (int i = 0; i < mCount; i++) {
+            listener.onSample(getChannel(i), getTimestamp(i), getValue(i));
+        }
+    }
+
+    /**
+     * @return the segment files in a directory, oldest first
+     */
+    public static File[] list(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SegmentRecorder.SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
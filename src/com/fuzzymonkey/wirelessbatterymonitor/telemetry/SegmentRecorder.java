@@ -0,0 +1,236 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every sample to disk in fixed size, memory mapped segment
+ * files.  The sample path only queues the sample (see {@link SampleQueue});
+ * a background thread copies queued samples into the mapped segment and
+ * the kernel writes the pages back to flash when it suits it.  If the
+ * writer falls behind, samples are dropped and counted rather than ever
+ * stalling the caller.
+ *
+ * Segment layout, little endian:
+ * <pre>
+ *   header, {@link #HEADER_SIZE} bytes
+ *     int   magic "WBMR"
+ *     short version
+ *     short record size
+ *     long  time the segment was opened, ms
+ *     int   number of records written
+ *     pad
+ *   records, {@link #RECORD_SIZE} bytes each
+ *     long  timestamp, ms
+ *     int   channel
+ *     float value
+ * </pre>
+ *
+ * The record count in the header is updated after each batch, so a
+ * segment cut short by a crash is still readable up to that count.
+ * Files are named after their open time, so sorting the names sorts the
+ * segments.
+ */
+public class SegmentRecorder implements SampleListener {
+    public static final int MAGIC = 0x524D4257; /* "WBMR" little endian */
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 16;
+    public static final String SUFFIX = ".wbm";
+
+    /* header field offsets */
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_RECORD_SIZE = 6;
+    static final int OFFSET_START_TIME = 8;
+    static final int OFFSET_COUNT = 16;
+
+    private static final int BATCH = 512;
+    private static final long IDLE_PARK_NANOS = 5L * 1000 * 1000;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final SampleQueue mQueue;
+
+    private Writer mWriter = null;
+    private volatile boolean mRunning = false;
+    private volatile long mRecorded = 0;
+    private volatile int mSegments = 0;
+    private volatile IOException mError = null;
+
+    /**
+     * @param directory     Where segment files go; created if missing
+     * @param segmentSize   Bytes per segment file, header included
+     * @param queueCapacity Samples that can be waiting for the writer
+     */
+    public SegmentRecorder(File directory, int segmentSize, int queueCapacity) {
+        mDirectory = directory;
+        mSegmentSize = segmentSize - (segmentSize - HEADER_SIZE) % RECORD_SIZE;
+        mQueue = new SampleQueue(queueCapacity);
+    }
+
+    public synchronized void start() {
+        if (mWriter != null) {
+            return;
+        }
+        mDirectory.mkdirs();
+        mRunning = true;
+        mWriter = new Writer();
+        mWriter.start();
+    }
+
+    /**
+     * Stop recording.  Whatever is still queued is written first.
+     */
+    public synchronized void stop() {
+        if (mWriter == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mWriter);
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter = null;
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        if (mRunning) {
+            mQueue.offer(channel, timestamp, value);
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /** @return samples written to segments */
+    public long getRecordedCount() {
+        return mRecorded;
+    }
+
+    /** @return samples dropped because the writer fell behind */
+    public long getDroppedCount() {
+        return mQueue.getDroppedCount();
+    }
+
+    /** @return segment files opened since start */
+    public int getSegmentCount() {
+        return mSegments;
+    }
+
+    /** @return the error that stopped the writer, or null */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Drains the queue into the current segment.  Implements
+     * SampleListener so draining doesn't allocate.
+     */
+    private class Writer extends Thread implements SampleListener {
+        private MappedByteBuffer mSegment = null;
+        private int mSegmentCount = 0;
+
+        Writer() {
+            super("SegmentRecorder");
+        }
+
+        public void run() {
+            while (true) {
+                int drained = mQueue.drainTo(this, BATCH);
+                if (mSegment != null && drained > 0) {
+                    mSegment.putInt(OFFSET_COUNT, mSegmentCount);
+                }
+                if (drained == 0) {
+                    if (!mRunning) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            closeSegment();
+        }
+
+        public void onSample(int channel, long timestamp, float value) {
+            if (mError != null) {
+                return;
+            }
+            try {
+                if (mSegment == null || mSegment.remaining() < RECORD_SIZE) {
+                    closeSegment();
+                    openSegment(timestamp);
+                }
+            } catch (IOException e) {
+                mError = e;
+                mRunning = false;
+                return;
+            }
+            mSegment.putLong(timestamp);
+            mSegment.putInt(channel);
+            mSegment.putFloat(value);
+            mSegmentCount++;
+            mRecorded++;
+        }
+
+        private void openSegment(long timestamp) throws IOException {
+            /* never reuse a name: a segment from before a restart, or from
+               data ingested again, may already have it, and the uploader
+               keys its progress by name.  The next free millisecond keeps
+               the names sorting in time order; the header has the real
+               start time */
+            long name = timestamp;
+            File file = new File(mDirectory, name + SUFFIX);
+            while (!file.createNewFile()) {
+                file = new File(mDirectory, ++name + SUFFIX);
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                mSegment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            } finally {
+                /* the mapping stays valid after the file is closed */
+                raf.close();
+            }
+            mSegment.order(ByteOrder.LITTLE_ENDIAN);
+            mSegment.putInt(0, MAGIC);
+            mSegment.putShort(OFFSET_VERSION, VERSION);
+            mSegment.putShort(OFFSET_RECORD_SIZE, (short) RECORD_SIZE);
+            mSegment.putLong(OFFSET_START_TIME, timestamp);
+            mSegment.putInt(OFFSET_COUNT, 0);
+            mSegment.position(HEADER_SIZE);
+            mSegmentCount = 0;
+            mSegments++;
+        }
+
+        private void closeSegment() {
+            if (mSegment != null) {
+                mSegment.putInt(OFFSET_COUNT, mSegmentCount);
+                mSegment.force();
+                mSegment = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * One stage of a channel's filter chain, see {@link ChannelFilters}.
+ * Stages keep their state in arrays sized when they're built, so
+ * filtering a sample allocates nothing.  A stage belongs to one channel:
+ * build a new one for each channel it filters.
+ */
+public abstract class SignalFilter {
+    /**
+     * @param timestamp  Wall clock ms of the sample
+     * @param value      The sample, never NaN
+     * @return the filtered value
+     */
+    public abstract float filter(long timestamp, float value);
+
+    /** Forget everything seen so far, e.g. after a dropout. */
+    public abstract void reset();
+}
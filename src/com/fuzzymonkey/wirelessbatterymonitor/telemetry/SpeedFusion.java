@@ -0,0 +1,152 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Fuses wheel sensor speed and GPS speed into one estimate with a two
+ * state (speed, acceleration) Kalman filter, published on
+ * {@link Channel#FUSED_SPEED}.  The wheel sensor is quick and precise but
+ * drops out at walking pace; GPS keeps going but lags and wanders, more
+ * so the worse its fix.  Each reading is weighted by how far it can be
+ * trusted: GPS by the fix's reported accuracy, the wheel by a fixed noise
+ * that grows at low speed where it gets unreliable.  Whichever is
+ * missing, the other carries the estimate on its own.
+ *
+ * The 2x2 covariance is kept as three doubles, so each update is a
+ * handful of multiplies with no matrices or allocation.  The lock is for
+ * the getters; the estimate is published after it is released, so a
+ * listener further down can't deadlock against it.
+ */
+public class SpeedFusion implements SampleListener {
+    /* noise, as standard deviations in mph */
+    private static final double WHEEL_SIGMA = 0.3;
+    private static final double WHEEL_SIGMA_SLOW = 3;  /* below WHEEL_MIN_MPH */
+    private static final double WHEEL_MIN_MPH = 3;
+    private static final double GPS_SIGMA_PER_METER = 0.1; /* per metre of fix accuracy */
+    private static final double GPS_SIGMA_MIN = 0.5;
+    private static final double GPS_SIGMA_UNKNOWN = 3;
+
+    /* how hard the rider can change acceleration, (mph/s^2)^2 per second */
+    private static final double JERK_DENSITY = 9;
+    private static final double INITIAL_ACCEL_VARIANCE = 4;  /* (mph/s)^2 */
+    private static final long RESET_GAP = 5 * 1000;          /* ms without readings: start over */
+
+    private final SampleListener mOutput;
+
+    /* state: speed in mph, acceleration in mph/s, and their covariance */
+    private double mSpeed = 0;
+    private double mAccel = 0;
+    private double mP00;
+    private double mP01;
+    private double mP11;
+    private long mTime = 0;
+
+    private double mGpsSigma = GPS_SIGMA_UNKNOWN;
+    private long mWheelUpdates = 0;
+    private long mGpsUpdates = 0;
+
+    /**
+     * @param output  Receives the FUSED_SPEED samples
+     */
+    public SpeedFusion(SampleListener output) {
+        mOutput = output;
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        if (channel != Channel.SPEED && channel != Channel.GPS_SPEED
+                && channel != Channel.GPS_ACCURACY) {
+            return;
+        }
+        float speed;
+        synchronized (this) {
+            switch (channel) {
+            case Channel.SPEED:
+                double wheelSigma = value < WHEEL_MIN_MPH ? WHEEL_SIGMA_SLOW : WHEEL_SIGMA;
+                update(timestamp, value, wheelSigma * wheelSigma);
+                mWheelUpdates++;
+                break;
+            case Channel.GPS_ACCURACY:
+                /* published just before the speed of the same fix */
+                mGpsSigma = Math.max(GPS_SIGMA_MIN, value * GPS_SIGMA_PER_METER);
+                return;
+            default: /* GPS_SPEED */
+                update(timestamp, value, mGpsSigma * mGpsSigma);
+                mGpsUpdates++;
+                break;
+            }
+            speed = (float) Math.max(0, mSpeed);
+        }
+        mOutput.onSample(Channel.FUSED_SPEED, timestamp, speed);
+    }
+
+    private void update(long timestamp, double mph, double variance) {
+        long gap = timestamp - mTime;
+        if (mTime == 0 || gap > RESET_GAP) {
+            mSpeed = mph;
+            mAccel = 0;
+            mP00 = variance;
+            mP01 = 0;
+            mP11 = INITIAL_ACCEL_VARIANCE;
+            mTime = timestamp;
+            return;
+        }
+        if (gap > 0) {
+            /* predict: constant acceleration, disturbed by white jerk */
+            double dt = gap / 1000.0;
+            double dt2 = dt * dt;
+            mSpeed += mAccel * dt;
+            mP00 += 2 * dt * mP01 + dt2 * mP11 + JERK_DENSITY * dt2 * dt / 3;
+            mP01 += dt * mP11 + JERK_DENSITY * dt2 / 2;
+            mP11 += JERK_DENSITY * dt;
+            mTime = timestamp;
+        }
+        /* correct; a late sample (gap <= 0) is applied to the current state */
+        double innovation = mph - mSpeed;
+        double s = mP00 + variance;
+        double k0 = mP00 / s;
+        double k1 = mP01 / s;
+        mSpeed += k0 * innovation;
+        mAccel += k1 * innovation;
+        mP11 -= k1 * mP01;
+        mP01 -= k0 * mP01;
+        mP00 -= k0 * mP00;
+    }
+
+    /** @return fused speed, mph */
+    public synchronized double getSpeed() {
+        return Math.max(0, mSpeed);
+    }
+
+    /** @return estimated acceleration, mph per second */
+    public synchronized double getAcceleration() {
+        return mAccel;
+    }
+
+    /** @return standard deviation of the speed estimate, mph */
+    public synchronized double getUncertainty() {
+        return Math.sqrt(mP00);
+    }
+
+    public synchronized long getWheelUpdateCount() {
+        return mWheelUpdates;
+    }
+
+    public synchronized long getGpsUpdateCount() {
+        return mGpsUpdates;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Drops readings that jump further from the last good one than the signal
+ * can, holding the last good value in their place.  A jump that persists
+ * for a few readings in a row is a real step, not a spike, and is
+ * accepted.  O(1).
+ */
+public class SpikeFilter extends SignalFilter {
+    private final float mMaxStep;
+    private final int mConfirm;
+    private float mGood;
+    private boolean mPrimed = false;
+    private int mRejected = 0;
+    private long mRejectedTotal = 0;
+
+    /**
+     * @param maxStep  Largest believable change between readings
+     * @param confirm  Readings in a row beyond that to hold back before
+     *                 taking the jump as a real step
+     */
+    public SpikeFilter(float maxStep, int confirm) {
+        mMaxStep = maxStep;
+        mConfirm = confirm;
+    }
+
+    public float filter(long timestamp, float value) {
+        if (!mPrimed || Math.abs(value - mGood) <= mMaxStep || ++mRejected > mConfirm) {
+            mGood = value;
+            mPrimed = true;
+            mRejected = 0;
+        } else {
+            mRejectedTotal++;
+        }
+        return mGood;
+    }
+
+    public void reset() {
+        mPrimed = false;
+        mRejected = 0;
+    }
+
+    /** @return readings held back as spikes so far; read from any thread it may lag */
+    public long getRejectedCount() {
+        return mRejectedTotal;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Estimates the pack's state of charge by coulomb counting: the a= current
+ * is integrated over time into amp hours drawn.  Voltage is only trusted
+ * when the pack is resting (current near zero for a while); then the
+ * resting voltage is looked up on the open circuit voltage curve and the
+ * estimate is pulled gently towards it, which cancels the drift of the
+ * integration without letting voltage sag under load move the gauge.
+ *
+ * Positive current is discharge.  Runs on the ingest thread, constant
+ * work per sample, and publishes {@link Channel#STATE_OF_CHARGE} (percent)
+ * at most once a second.
+ */
+public class StateOfChargeEstimator implements SampleListener {
+    /* resting voltage curve for the stock 36 V lead acid pack (three 12 V
+       batteries), matching the 34.2 V empty point BatteryView used */
+    public static final float[] LEAD_ACID_36V_VOLTS = {
+        34.20f, 34.53f, 34.98f, 35.43f, 35.88f, 36.30f, 36.72f, 37.11f, 37.50f, 37.86f, 38.19f
+    };
+    public static final float[] LEAD_ACID_36V_PERCENT = {
+        0, 10, 20, 30, 40, 50, 60, 70, 80, 90, 100
+    };
+
+    private static final float REST_CURRENT = 0.5f;      /* amps */
+    private static final long REST_TIME = 60 * 1000;     /* ms at rest before voltage is trusted */
+    private static final double REST_TAU = 120 * 1000;   /* ms time constant of the pull to the curve */
+    private static final long MAX_GAP = 10 * 1000;       /* don't integrate across dropouts */
+    private static final long PUBLISH_INTERVAL = 1000;
+    private static final double MS_PER_HOUR = 3600.0 * 1000;
+
+    private final float[] mCurveVolts;
+    private final float[] mCurvePercent;
+    private final double mCapacityAh;
+    private final SampleListener mOutput;
+
+    /* amp hours still in the pack */
+    private final CompensatedSum mRemainingAh = new CompensatedSum();
+    private boolean mInitialised = false;
+    private float mLastCurrent = 0;
+    private long mLastCurrentTime = 0;
+    private long mRestSince = -1;
+    private long mLastVoltageTime = 0;
+    private long mLastPublish = 0;
+
+    /**
+     * @param capacityAh    Usable pack capacity
+     * @param curveVolts    Resting voltages, ascending
+     * @param curvePercent  State of charge at each of those voltages
+     * @param output        Receives the STATE_OF_CHARGE samples
+     */
+    public StateOfChargeEstimator(double capacityAh, float[] curveVolts, float[] curvePercent,
+            SampleListener output) {
+        mCapacityAh = capacityAh;
+        mCurveVolts = curveVolts;
+        mCurvePercent = curvePercent;
+        mOutput = output;
+    }
+
+    /**
+     * Lead acid pack of any voltage: the 36 V resting curve scaled by
+     * nominalVolts / 36, the same way the pack alert levels are, since
+     * other voltages are more or fewer of the same 12 V batteries in
+     * series.
+     *
+     * @param capacityAh    Usable pack capacity
+     * @param nominalVolts  Pack nominal voltage
+     * @param output        Receives the STATE_OF_CHARGE samples
+     */
+    public static StateOfChargeEstimator leadAcid(double capacityAh, double nominalVolts,
+            SampleListener output) {
+        float scale = (float) (nominalVolts / 36);
+        float[] volts = new float[LEAD_ACID_36V_VOLTS.length];
+        for (int i = 0; i < volts.length; i++) {
+            volts[i] = LEAD_ACID_36V_VOLTS[i] * scale;
+        }
+        return new StateOfChargeEstimator(capacityAh, volts, LEAD_ACID_36V_PERCENT, output);
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        switch (channel) {
+        case Channel.CURRENT:
+            onCurrent(timestamp, value);
+            break;
+        case Channel.VOLTAGE:
+            onVoltage(timestamp, value);
+            break;
+        default:
+            return;
+        }
+        if (mInitialised && timestamp - mLastPublish >= PUBLISH_INTERVAL) {
+            mLastPublish = timestamp;
+            mOutput.onSample(Channel.STATE_OF_CHARGE, timestamp, getPercent());
+        }
+    }
+
+    private void onCurrent(long timestamp, float amps) {
+        long dt = timestamp - mLastCurrentTime;
+        if (mLastCurrentTime != 0 && dt > 0 && dt <= MAX_GAP && mInitialised) {
+            /* trapezoid between the last two readings */
+            double ah = (mLastCurrent + amps) * 0.5 * dt / MS_PER_HOUR;
+            mRemainingAh.add(-ah);
+            /* a full pack takes no more charge, so regen past full mustn't
+               bank credit that would hide the discharge after it */
+            double remaining = mRemainingAh.get();
+            if (remaining > mCapacityAh) {
+                mRemainingAh.set(mCapacityAh);
+            } else if (remaining < 0) {
+                mRemainingAh.set(0);
+            }
+        }
+        mLastCurrent = amps;
+        mLastCurrentTime = timestamp;
+
+        if (Math.abs(amps) < REST_CURRENT) {
+            if (mRestSince < 0) {
+                mRestSince = timestamp;
+            }
+        } else {
+            mRestSince = -1;
+        }
+    }
+
+    private void onVoltage(long timestamp, float volts) {
+        double restingAh = percentAt(volts) / 100.0 * mCapacityAh;
+        if (!mInitialised) {
+            /* first guess, even under load; resting corrections fix it up */
+            mRemainingAh.set(restingAh);
+            mInitialised = true;
+            mLastVoltageTime = timestamp;
+            return;
+        }
+        long dt = timestamp - mLastVoltageTime;
+        mLastVoltageTime = timestamp;
+        if (mRestSince >= 0 && timestamp - mRestSince >= REST_TIME && dt > 0) {
+            /* first order pull, so the correction rate doesn't depend on
+               how fast the device sends voltage */
+            double gain = Math.min(1.0, dt / REST_TAU);
+            double remaining = mRemainingAh.get();
+            mRemainingAh.set(remaining + (restingAh - remaining) * gain);
+        }
+    }
+
+    /** @return state of charge in percent, 0..100, NaN before the first voltage */
+    public float getPercent() {
+        if (!mInitialised) {
+            return Float.NaN;
+        }
+        double percent = mRemainingAh.get() / mCapacityAh * 100;
+        return (float) Math.max(0, Math.min(100, percent));
+    }
+
+    /** @return true while the pack has been resting long enough to trust voltage */
+    public boolean isResting(long now) {
+        return mRestSince >= 0 && now - mRestSince >= REST_TIME;
+    }
+
+    /**
+     * Interpolate the resting voltage curve.
+     */
+    float percentAt(float volts) {
+        int last = mCurveVolts.length - 1;
+        if (volts <= mCurveVolts[0]) {
+            return mCurvePercent[0];
+        }
+        if (volts >= mCurveVolts[last]) {
+            return mCurvePercent[last];
+        }
+        int i = 1;
+        while (mCurveVolts[i] < volts) {
+            i++;
+        }
+        float f = (volts - mCurveVolts[i - 1]) / (mCurveVolts[i] - mCurveVolts[i - 1]);
+        return mCurvePercent[i - 1] + f * (mCurvePercent[i] - mCurvePercent[i - 1]);
+    }
+}
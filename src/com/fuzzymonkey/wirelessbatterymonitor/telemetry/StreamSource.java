@@ -0,0 +1,79 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A monitor's wire bytes from a file, a named pipe (e.g. a serial port
+ * relayed with socat) or standard input.  End of file is the end of the
+ * source.
+ */
+public class StreamSource implements TelemetrySource {
+    private final String mPath;
+    private InputStream mIn;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param path  File or pipe to read, "-" for standard input
+     */
+    public StreamSource(String path) {
+        mPath = path;
+    }
+
+    public String getId() {
+        return "stream:" + mPath;
+    }
+
+    public String getName() {
+        return mPath.equals("-") ? "stdin" : mPath;
+    }
+
+    public void open() throws IOException {
+        mIn = mPath.equals("-") ? System.in : new FileInputStream(mPath);
+    }
+
+    public void run(SampleListener listener) throws IOException {
+        TelemetryDecoder decoder = new TelemetryDecoder(listener, 64 * 1024);
+        try {
+            decoder.readFrom(mIn);
+        } catch (IOException e) {
+            if (!mClosed) {
+                throw e;
+            }
+        } finally {
+            if (mIn != System.in) {
+                mIn.close();
+            }
+        }
+    }
+
+    public void close() {
+        mClosed = true;
+        InputStream in = mIn;
+        if (in != null && in != System.in) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                /* closing anyway */
+            }
+        }
+    }
+}
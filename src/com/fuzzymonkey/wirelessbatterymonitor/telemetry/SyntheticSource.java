@@ -0,0 +1,157 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.IOException;
+
+/**
+ * A pretend monitor.  Generates speed, voltage and current following a
+ * waveform, encodes them in the text or binary wire protocol and pushes
+ * the bytes through a {@link TelemetryDecoder}, so everything from parsing
+ * on runs exactly as it would for a real device.  Useful for demos and
+ * for loading the pipeline well past a real device's rate.
+ *
+ * Current swings between 0 and 30 A with the waveform, speed follows it
+ * between 4 and 20 mph and voltage sags with the current.
+ */
+public class SyntheticSource implements TelemetrySource {
+    public static final int WAVE_SINE = 0;
+    public static final int WAVE_SQUARE = 1;
+    public static final int WAVE_SAWTOOTH = 2;
+
+    /* longest encoding of one sample, "s=" + number + "\r\n" */
+    public static final int MAX_SAMPLE_BYTES = 2 + FixedFormat.MAX_LENGTH + 2;
+
+    private static final int BATCHES_PER_SECOND = 100;
+    private static final byte[] KEYS = { 's', 'v', 'a' };
+
+    private final String mName;
+    private final double mRate;
+    private final int mWaveform;
+    private final double mPeriod;
+    private final int mProtocol;
+    private volatile boolean mClosed = false;
+
+    /* generator state */
+    private long mSample = 0;
+    private final char[] mText = new char[FixedFormat.MAX_LENGTH];
+
+    /**
+     * @param name      Shown to the user
+     * @param rate      Samples per second over all three channels, 0 for
+     *                  as fast as the pipeline takes them
+     * @param waveform  One of the WAVE_ constants
+     * @param period    Seconds per waveform cycle, in generated time
+     * @param protocol  TelemetryDecoder.PROTOCOL_TEXT or PROTOCOL_BINARY
+     */
+    public SyntheticSource(String name, double rate, int waveform, double period, int protocol) {
+        mName = name;
+        mRate = rate;
+        mWaveform = waveform;
+        mPeriod = period;
+        mProtocol = protocol;
+    }
+
+    public String getId() {
+        return "synthetic:" + mName;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void open() {
+    }
+
+    public void run(SampleListener listener) throws IOException {
+        TelemetryDecoder decoder = new TelemetryDecoder(listener);
+        int batch = mRate > 0 ? (int) Math.max(1, mRate / BATCHES_PER_SECOND) : 256;
+        byte[] buffer = new byte[batch * MAX_SAMPLE_BYTES];
+        Pacer pacer = new Pacer();
+        long sent = 0;
+        while (!mClosed) {
+            int length = encode(buffer, 0, batch);
+            decoder.feed(buffer, 0, length);
+            sent += batch;
+            if (mRate > 0) {
+                pacer.waitUntil((long) (sent * 1e9 / mRate));
+            }
+        }
+    }
+
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Generate the next samples in wire format.
+     * @param dst    Room for count * MAX_SAMPLE_BYTES
+     * @param count  Samples to generate
+     * @return bytes written
+     */
+    public int encode(byte[] dst, int off, int count) {
+        int pos = off;
+        for (int i = 0; i < count; i++, mSample++) {
+            int channel = (int) (mSample % Channel.DEVICE_COUNT);
+            /* spread the rate over the channels, so each cycle takes
+               mPeriod seconds of generated time at the nominal rate */
+            double t = mSample / (mRate > 0 ? mRate : 30.0);
+            float value = valueAt(channel, t);
+            if (mProtocol == TelemetryDecoder.PROTOCOL_BINARY) {
+                BinaryFrame.encode(channel, value, (int) mSample, dst, pos);
+                pos += BinaryFrame.LENGTH;
+            } else {
+                dst[pos++] = KEYS[channel];
+                dst[pos++] = '=';
+                int length = FixedFormat.format(value, 2, mText, 0);
+                for (int j = 0; j < length; j++) {
+                    dst[pos++] = (byte) mText[j];
+                }
+                dst[pos++] = '\r';
+                dst[pos++] = '\n';
+            }
+        }
+        return pos - off;
+    }
+
+    private float valueAt(int channel, double t) {
+        double phase = t / mPeriod;
+        phase -= Math.floor(phase);
+        double wave;
+        switch (mWaveform) {
+        case WAVE_SQUARE:
+            wave = phase < 0.5 ? 1 : -1;
+            break;
+        case WAVE_SAWTOOTH:
+            wave = phase * 2 - 1;
+            break;
+        default:
+            wave = Math.sin(phase * 2 * Math.PI);
+            break;
+        }
+        double amps = 15 + 15 * wave;
+        switch (channel) {
+        case Channel.SPEED:
+            return (float) (12 + 8 * wave);
+        case Channel.VOLTAGE:
+            return (float) (38.2 - 0.05 * amps);
+        default:
+            return (float) amps;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A monitor behind a serial to TCP bridge.  The connection is expected to
+ * stay up, so the peer closing it counts as a dropped link and the
+ * session reconnects.
+ */
+public class TcpSource implements TelemetrySource {
+    private static final int CONNECT_TIMEOUT = 5 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000; /* silent this long: assume it dropped */
+
+    private final String mHost;
+    private final int mPort;
+    private volatile Socket mSocket = null;
+    private volatile boolean mClosed = false;
+
+    public TcpSource(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    public String getId() {
+        return "tcp:" + mHost + ":" + mPort;
+    }
+
+    public String getName() {
+        return mHost + ":" + mPort;
+    }
+
+    public void open() throws IOException {
+        Socket socket = new Socket();
+        mSocket = socket;
+        if (mClosed) {
+            socket.close();
+            throw new IOException("closed");
+        }
+        try {
+            socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public void run(SampleListener listener) throws IOException {
+        Socket socket = mSocket;
+        TelemetryDecoder decoder = new TelemetryDecoder(listener, 16 * 1024);
+        try {
+            decoder.readFrom(socket.getInputStream());
+        } finally {
+            socket.close();
+        }
+        if (!mClosed) {
+            throw new IOException(getName() + " closed the connection");
+        }
+    }
+
+    public void close() {
+        mClosed = true;
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* closing anyway */
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a telemetry stream that may be either the "name=value" text
+ * protocol or packed {@link BinaryFrame}s.  Until the first good sample
+ * arrives every chunk is offered to both parsers; whichever produces it
+ * decides the protocol for the rest of the stream.
+ *
+ * Not thread safe; each input stream gets its own decoder.
+ */
+public class TelemetryDecoder {
+    public static final int PROTOCOL_UNKNOWN = 0;
+    public static final int PROTOCOL_TEXT = 1;
+    public static final int PROTOCOL_BINARY = 2;
+
+    private final LineParser mTextParser;
+    private final BinaryFrameParser mBinaryParser;
+    private final byte[] mReadBuffer;
+    private int mProtocol = PROTOCOL_UNKNOWN;
+
+    public TelemetryDecoder(SampleListener listener) {
+        this(listener, 1024);
+    }
+
+    public TelemetryDecoder(SampleListener listener, int readBufferSize) {
+        mTextParser = new LineParser(listener, 0);
+        mBinaryParser = new BinaryFrameParser(listener);
+        mReadBuffer = new byte[readBufferSize];
+    }
+
+    /**
+     * Read and decode until the stream hits end of file.
+     * @throws IOException when the underlying read fails
+     */
+    public void readFrom(InputStream in) throws IOException {
+        int count;
+        while ((count = in.read(mReadBuffer)) != -1) {
+            feed(mReadBuffer, 0, count);
+        }
+    }
+
+    public void feed(byte[] buffer, int offset, int length) {
+        switch (mProtocol) {
+        case PROTOCOL_TEXT:
+            mTextParser.feed(buffer, offset, length);
+            break;
+        case PROTOCOL_BINARY:
+            mBinaryParser.feed(buffer, offset, length);
+            break;
+        default:
+            /* binary first: its sync word never shows up in text, so it
+               can't be fooled by a text stream */
+            mBinaryParser.feed(buffer, offset, length);
+            if (mBinaryParser.getSampleCount() > 0) {
+                mProtocol = PROTOCOL_BINARY;
+                break;
+            }
+            mTextParser.feed(buffer, offset, length);
+            if (mTextParser.getSampleCount() > 0) {
+                mProtocol = PROTOCOL_TEXT;
+            }
+            break;
+        }
+    }
+
+    /** @return one of the PROTOCOL_ constants */
+    public int getProtocol() {
+        return mProtocol;
+    }
+
+    public LineParser getTextParser() {
+        return mTextParser;
+    }
+
+    public BinaryFrameParser getBinaryParser() {
+        return mBinaryParser;
+    }
+}
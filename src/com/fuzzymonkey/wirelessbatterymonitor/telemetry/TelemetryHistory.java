@@ -0,0 +1,73 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * One {@link ChannelHistory} per channel, filled straight from the sample
+ * path whether or not anything is watching.
+ *
+ * A channel's ring is only allocated when the channel first publishes,
+ * so device slots that never connect cost nothing, and the per device
+ * channels get smaller rings than the shared ones since the pack totals
+ * already keep the long view.
+ */
+public class TelemetryHistory implements SampleListener {
+    /* handed out for channels nothing has published on yet; never written */
+    private static final ChannelHistory EMPTY = new ChannelHistory(2);
+
+    private final ChannelHistory[] mChannels = new ChannelHistory[Channel.COUNT];
+    private final int mCapacity;
+    private final int mDeviceCapacity;
+
+    /**
+     * @param capacity        Samples kept per shared channel
+     * @param deviceCapacity  Samples kept per device channel
+     */
+    public TelemetryHistory(int capacity, int deviceCapacity) {
+        mCapacity = capacity;
+        mDeviceCapacity = deviceCapacity;
+    }
+
+    public void onSample(int channel, long timestamp, float value) {
+        ChannelHistory history = mChannels[channel];
+        if (history == null) {
+            history = create(channel);
+        }
+        history.publish(timestamp, value);
+    }
+
+    /* ChannelHistory's arrays are final, so readers that see the new
+       reference without the lock still see them filled in */
+    private synchronized ChannelHistory create(int channel) {
+        ChannelHistory history = mChannels[channel];
+        if (history == null) {
+            history = new ChannelHistory(Channel.slotOf(channel) < 0 ? mCapacity : mDeviceCapacity);
+            mChannels[channel] = history;
+        }
+        return history;
+    }
+
+    /**
+     * @return the channel's history; an empty one, not kept up to date,
+     *         if nothing has been published on it yet
+     */
+    public ChannelHistory get(int channel) {
+        ChannelHistory history = mChannels[channel];
+        return history == null ? EMPTY : history;
+    }
+}
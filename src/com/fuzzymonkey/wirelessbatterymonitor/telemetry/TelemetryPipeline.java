@@ -0,0 +1,170 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.File;
+
+/**
+ * The sample path shared by the Android service and the headless daemon:
+ * everything from a decoded device reading to history, rollups, pack
+ * totals, fused speed, state of charge, range and the ride recording.
+ * Plain Java, so one code path serves the phone and a Linux box reading
+ * serial or TCP.
+ *
+ * Sources publish on per device channels through {@link #slot}, or
+ * through {@link #publish}; derived channels come back through the same
+ * dispatcher, which callers can listen to as well (the display mailbox, a
+ * status printer).  Alerts watch the lot; the owner listens to
+ * {@link #getAlerts} and calls its tick.
+ */
+public class TelemetryPipeline {
+    public static final int HISTORY_CAPACITY = 1 << 15; /* ~an hour per channel at 10 Hz */
+    public static final int DEVICE_HISTORY_CAPACITY = 1 << 12; /* several minutes per device */
+    public static final int SEGMENT_SIZE = 1 << 20;     /* 64k samples per file */
+    public static final int RECORDER_QUEUE = 1 << 13;   /* a couple of seconds at several kHz */
+    public static final int BULK_RECORDER_QUEUE = 1 << 20;
+
+    private final SampleDispatcher mSamples = new SampleDispatcher();
+    private final TelemetryHistory mHistory = new TelemetryHistory(HISTORY_CAPACITY,
+            DEVICE_HISTORY_CAPACITY);
+    private final RollupEngine mRollups = new RollupEngine();
+    private final PackAggregator mPack = new PackAggregator(mSamples);
+    private final SpeedFusion mSpeedFusion = new SpeedFusion(mSamples);
+    private final StateOfChargeEstimator mStateOfCharge;
+    private final RangeEstimator mRange;
+    private final SegmentRecorder mRecorder;
+    private final AlertEngine mAlerts = new AlertEngine();
+    /* held while a source's sample goes through the listeners */
+    private final Object mIngestLock = new Object();
+
+    /**
+     * @param recordDirectory  Where rides are recorded, null not to record
+     * @param capacityAh       Usable pack capacity
+     * @param nominalVolts     Pack nominal voltage
+     */
+    public TelemetryPipeline(File recordDirectory, double capacityAh, double nominalVolts) {
+        this(recordDirectory, capacityAh, nominalVolts, RECORDER_QUEUE);
+    }
+
+    /**
+     * @param recorderQueue  Samples the recorder can fall behind by before
+     *                       it drops; bulk ingest from files wants more
+     */
+    public TelemetryPipeline(File recordDirectory, double capacityAh, double nominalVolts,
+            int recorderQueue) {
+        mStateOfCharge = StateOfChargeEstimator.leadAcid(capacityAh, nominalVolts, mSamples);
+        mRange = new RangeEstimator(capacityAh, nominalVolts, mSamples);
+        mAlerts.addPackRules(nominalVolts);
+        mRecorder = recordDirectory == null ? null
+                : new SegmentRecorder(recordDirectory, SEGMENT_SIZE, recorderQueue);
+    }
+
+    /**
+     * Start recording and hook the consumers up.  Listeners added to
+     * {@link #getSamples} afterwards see each sample after all of these.
+     */
+    public void start() {
+        /* history first so it has the sample even if the UI is gone */
+        mSamples.add(mHistory);
+        if (mRecorder != null) {
+            mRecorder.start();
+            mSamples.add(mRecorder);
+        }
+        mSamples.add(mRollups);
+        mSamples.add(mPack); /* device channels in, pack totals out */
+        mSamples.add(mSpeedFusion);
+        mSamples.add(mStateOfCharge);
+        mSamples.add(mRange); /* after state of charge, which it reads */
+        mSamples.add(mAlerts);
+    }
+
+    /**
+     * Flush the ride to disk.  Sources should be stopped first.
+     */
+    public void stop() {
+        if (mRecorder != null) {
+            mSamples.remove(mRecorder);
+            mRecorder.stop();
+        }
+    }
+
+    /**
+     * Feed a source's sample in, from any thread.  Sources run on threads
+     * of their own, so samples go through the listeners one at a time:
+     * each derived channel keeps a single writer, and listeners never
+     * wait on each other's locks from two threads at once.
+     */
+    public void publish(int channel, long timestamp, float value) {
+        synchronized (mIngestLock) {
+            mSamples.onSample(channel, timestamp, value);
+        }
+    }
+
+    /**
+     * @return a listener that publishes a source's SPEED/VOLTAGE/CURRENT
+     *         on the given device slot's channels
+     */
+    public SampleListener slot(final int slot) {
+        return new SampleListener() {
+            public void onSample(int channel, long timestamp, float value) {
+                publish(Channel.device(slot, channel), timestamp, value);
+            }
+        };
+    }
+
+    /**
+     * Every sample, device and derived, fans out from here.  Add listeners
+     * here; sources should go through {@link #publish}.
+     */
+    public SampleDispatcher getSamples() {
+        return mSamples;
+    }
+
+    public TelemetryHistory getHistory() {
+        return mHistory;
+    }
+
+    public RollupEngine getRollups() {
+        return mRollups;
+    }
+
+    public PackAggregator getPack() {
+        return mPack;
+    }
+
+    public SpeedFusion getSpeedFusion() {
+        return mSpeedFusion;
+    }
+
+    public StateOfChargeEstimator getStateOfCharge() {
+        return mStateOfCharge;
+    }
+
+    public RangeEstimator getRange() {
+        return mRange;
+    }
+
+    public AlertEngine getAlerts() {
+        return mAlerts;
+    }
+
+    /** @return the recorder, null if not recording */
+    public SegmentRecorder getRecorder() {
+        return mRecorder;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.IOException;
+
+/**
+ * Somewhere samples come from: a monitor over Bluetooth, a generator, a
+ * recorded ride.  The service runs each source on a session thread,
+ * calling {@link #open} and then {@link #run} again after every failure
+ * until the session is cancelled.
+ *
+ * Sources deliver the device channels only, SPEED, VOLTAGE and CURRENT;
+ * the session moves them into its slot's namespace.
+ */
+public interface TelemetrySource {
+    /**
+     * @return something that tells this source apart from others of its
+     *         kind, e.g. a device address or a file path
+     */
+    String getId();
+
+    /** @return a name to show the user */
+    String getName();
+
+    /**
+     * Connect or open.  Blocks.
+     * @throws IOException if the source can't be reached right now
+     */
+    void open() throws IOException;
+
+    /**
+     * Deliver samples until the source runs out, which returns normally,
+     * or the link fails, which throws.
+     */
+    void run(SampleListener listener) throws IOException;
+
+    /**
+     * Make a blocked open or run give up promptly.  Callable from any
+     * thread; the source is finished afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,116 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Streaming decompressor for {@link TimeSeriesEncoder} output.  Call
+ * {@link #next()} once per sample, then read the sample with
+ * {@link #getTimestamp()} and {@link #getValue()}.
+ */
+public class TimeSeriesDecoder {
+    private final BitReader mIn;
+    private final int mCount;
+    private int mDecoded = 0;
+    private long mTime;
+    private long mDelta;
+    private int mBits;
+    private int mLeading = 0;
+    private int mTrailing = 0;
+
+    /**
+     * @param count  Number of samples the stream holds
+     */
+    public TimeSeriesDecoder(byte[] bytes, int offset, int length, int count) {
+        mIn = new BitReader(bytes, offset, length);
+        mCount = count;
+    }
+
+    public boolean hasNext() {
+        return mDecoded < mCount;
+    }
+
+    /**
+     * Decode the next sample.
+     * @throws IllegalStateException if the stream is truncated
+     */
+    public void next() {
+        if (mDecoded == 0) {
+            mTime = mIn.read(64);
+            mDelta = 0;
+            mBits = (int) mIn.read(32);
+            mDecoded++;
+            return;
+        }
+
+        mDelta += readDeltaOfDelta();
+        mTime += mDelta;
+        mBits ^= readXor();
+        mDecoded++;
+    }
+
+    public long getTimestamp() {
+        return mTime;
+    }
+
+    public float getValue() {
+        return Float.intBitsToFloat(mBits);
+    }
+
+    /**
+     * Decode everything left into the listener.
+     */
+    public void replay(int channel, SampleListener listener) {
+        while (hasNext()) {
+            next();
+            listener.onSample(channel, mTime, Float.intBitsToFloat(mBits));
+        }
+    }
+
+    private long readDeltaOfDelta() {
+        if (!mIn.readBit()) {
+            return 0;
+        }
+        if (!mIn.readBit()) {
+            return signExtend(mIn.read(7), 7);
+        }
+        if (!mIn.readBit()) {
+            return signExtend(mIn.read(9), 9);
+        }
+        if (!mIn.readBit()) {
+            return signExtend(mIn.read(12), 12);
+        }
+        return mIn.read(64);
+    }
+
+    private int readXor() {
+        if (!mIn.readBit()) {
+            return 0;
+        }
+        if (mIn.readBit()) {
+            mLeading = (int) mIn.read(5);
+            int length = (int) mIn.read(5) + 1;
+            mTrailing = 32 - mLeading - length;
+        }
+        int length = 32 - mLeading - mTrailing;
+        return (int) mIn.read(length) << mTrailing;
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+/**
+ * Streaming compressor for one channel's (timestamp, value) series, in the
+ * style of Facebook's Gorilla: timestamps as delta-of-delta, values as the
+ * XOR with the previous value.  A steady sample rate costs one bit per
+ * timestamp and an unchanged value one bit per value.
+ *
+ * <pre>
+ * first sample: 64 bit timestamp, 32 bit value
+ * timestamp, dod = (t - prev) - prevDelta
+ *   0                      '0'
+ *   [-64, 63]              '10'   + 7 bits
+ *   [-256, 255]            '110'  + 9 bits
+ *   [-2048, 2047]          '1110' + 12 bits
+ *   otherwise              '1111' + 64 bits
+ * value, xor = bits ^ prevBits
+ *   0                      '0'
+ *   fits previous window   '10' + meaningful bits
+ *   otherwise              '11' + 5 bits leading zeros + 5 bits (length - 1)
+ *                          + meaningful bits
+ * </pre>
+ */
+public class TimeSeriesEncoder {
+    private final BitWriter mOut;
+    private int mCount = 0;
+    private long mPrevTime;
+    private long mPrevDelta;
+    private int mPrevBits;
+    private int mPrevLeading = -1;
+    private int mPrevTrailing = 0;
+
+    public TimeSeriesEncoder(int initialBytes) {
+        mOut = new BitWriter(initialBytes);
+    }
+
+    public void append(long timestamp, float value) {
+        int bits = Float.floatToIntBits(value);
+        if (mCount == 0) {
+            mOut.write(timestamp, 64);
+            mOut.write(bits, 32);
+            mPrevTime = timestamp;
+            mPrevDelta = 0;
+            mPrevBits = bits;
+            mCount++;
+            return;
+        }
+
+        long delta = timestamp - mPrevTime;
+        writeDeltaOfDelta(delta - mPrevDelta);
+        mPrevTime = timestamp;
+        mPrevDelta = delta;
+
+        writeXor(bits ^ mPrevBits);
+        mPrevBits = bits;
+        mCount++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            mOut.write(0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            mOut.write(0x2, 2);
+            mOut.write(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            mOut.write(0x6, 3);
+            mOut.write(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            mOut.write(0xE, 4);
+            mOut.write(dod, 12);
+        } else {
+            mOut.write(0xF, 4);
+            mOut.write(dod, 64);
+        }
+    }
+
+    private void writeXor(int xor) {
+        if (xor == 0) {
+            mOut.write(0, 1);
+            return;
+        }
+        int leading = Integer.numberOfLeadingZeros(xor);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (mPrevLeading >= 0 && leading >= mPrevLeading && trailing >= mPrevTrailing) {
+            /* the meaningful bits fit in the previous window */
+            mOut.write(0x2, 2);
+            mOut.write(xor >>> mPrevTrailing, 32 - mPrevLeading - mPrevTrailing);
+        } else {
+            int length = 32 - leading - trailing;
+            mOut.write(0x3, 2);
+            mOut.write(leading, 5);
+            mOut.write(length - 1, 5);
+            mOut.write(xor >>> trailing, length);
+            mPrevLeading = leading;
+            mPrevTrailing = trailing;
+        }
+    }
+
+    /** @return samples appended */
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getByteLength() {
+        return mOut.getByteLength();
+    }
+
+    /** @return the backing array; only the first getByteLength() count */
+    public byte[] getBytes() {
+        return mOut.getBytes();
+    }
+
+    public void reset() {
+        mOut.reset();
+        mCount = 0;
+        mPrevLeading = -1;
+        mPrevTrailing = 0;
+    }
+}
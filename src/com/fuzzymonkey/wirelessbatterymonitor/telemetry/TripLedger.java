@@ -0,0 +1,258 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.fuzzymonkey.wirelessbatterymonitor.telemetry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Odometer and energy ledger: miles, Wh used and Wh put back by
+ * regeneration, for the lifetime of the install and two resettable trips.
+ *
+ * Nothing is integrated here.  The totals come from the pipeline's
+ * {@link RangeEstimator}, so the trips and the range estimate always agree
+ * on distance and energy; the ledger adds what earlier runs of the app
+ * counted, from its checkpoint.  A trip is the lifetime totals less a
+ * copy taken when it was reset, so any number of trips cost nothing and
+ * every read is a subtraction.
+ *
+ * Totals survive the service being killed and restarted through a small
+ * checkpoint file, which the owner writes every few seconds with
+ * {@link #checkpoint}; it is skipped while nothing has changed.
+ */
+public class TripLedger {
+    public static final int TRIP_A = 0;
+    public static final int TRIP_B = 1;
+    public static final int LIFETIME = 2;  /* never reset */
+    public static final int TRIPS = 3;
+
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final RangeEstimator mMeter;
+
+    /* lifetime totals less the meter's, i.e. what earlier runs counted */
+    private double mBaseMiles;
+    private double mBaseWhUsed;
+    private double mBaseWhRegen;
+
+    /* lifetime totals when each trip was reset, all zero for LIFETIME */
+    private final double[] mStartMiles = new double[TRIPS];
+    private final double[] mStartWhUsed = new double[TRIPS];
+    private final double[] mStartWhRegen = new double[TRIPS];
+    private final long[] mStartTime = new long[TRIPS];
+
+    /* set by a reset, cleared by checkpoint() */
+    private boolean mDirty = false;
+    /* checkpoint() copies the totals here under the lock, writes outside
+       it; the first three are compared to see if the totals moved */
+    private final double[] mSnapshot = new double[3 + 3 * TRIPS];
+    private final long[] mSnapshotTime = new long[TRIPS];
+
+    /**
+     * @param file   Checkpoint to pick the totals up from and write them to
+     * @param meter  Integrates this run's miles and energy
+     */
+    public TripLedger(File file, RangeEstimator meter) {
+        mFile = file;
+        mMeter = meter;
+        load();
+    }
+
+    private double miles() {
+        return mBaseMiles + mMeter.getMiles();
+    }
+
+    private double whUsed() {
+        return mBaseWhUsed + mMeter.getWhUsed();
+    }
+
+    private double whRegen() {
+        return mBaseWhRegen + mMeter.getWhRegenerated();
+    }
+
+    /**
+     * Zero a trip.
+     *
+     * @param trip  TRIP_A or TRIP_B
+     * @param now   Wall clock ms, reported by {@link #getStartTime}
+     */
+    public synchronized void reset(int trip, long now) {
+        if (trip == LIFETIME || trip < 0 || trip >= TRIPS) {
+            throw new IllegalArgumentException("can't reset trip " + trip);
+        }
+        mStartMiles[trip] = miles();
+        mStartWhUsed[trip] = whUsed();
+        mStartWhRegen[trip] = whRegen();
+        mStartTime[trip] = now;
+        mDirty = true;
+    }
+
+    /** @return miles travelled on a trip */
+    public synchronized double getMiles(int trip) {
+        return miles() - mStartMiles[trip];
+    }
+
+    /** @return Wh drawn from the pack on a trip */
+    public synchronized double getWhUsed(int trip) {
+        return whUsed() - mStartWhUsed[trip];
+    }
+
+    /** @return Wh put back into the pack by regeneration on a trip */
+    public synchronized double getWhRegenerated(int trip) {
+        return whRegen() - mStartWhRegen[trip];
+    }
+
+    /** @return net Wh per mile over a trip, NaN before it has gone anywhere */
+    public synchronized double getWhPerMile(int trip) {
+        double miles = getMiles(trip);
+        if (miles <= 0) {
+            return Double.NaN;
+        }
+        return (getWhUsed(trip) - getWhRegenerated(trip)) / miles;
+    }
+
+    /** @return wall clock ms the trip was last reset, 0 if it never was */
+    public synchronized long getStartTime(int trip) {
+        return mStartTime[trip];
+    }
+
+    public static String getTripName(int trip) {
+        switch (trip) {
+        case TRIP_A:
+            return "trip A";
+        case TRIP_B:
+            return "trip B";
+        default:
+            return "lifetime";
+        }
+    }
+
+    /**
+     * Write the totals if they changed since the last call.  A few dozen
+     * bytes written then renamed, so a kill part way leaves the old or
+     * the new file.  Call from a background thread; samples keep flowing
+     * while it writes.
+     */
+    public void checkpoint() throws IOException {
+        /* one checkpoint at a time; the lock on the totals is only held
+           for the copy */
+        synchronized (mSnapshot) {
+            synchronized (this) {
+                double miles = miles();
+                double whUsed = whUsed();
+                double whRegen = whRegen();
+                if (!mDirty && miles == mSnapshot[0] && whUsed == mSnapshot[1]
+                        && whRegen == mSnapshot[2]) {
+                    return;
+                }
+                mDirty = false;
+                mSnapshot[0] = miles;
+                mSnapshot[1] = whUsed;
+                mSnapshot[2] = whRegen;
+                for (int i = 0; i < TRIPS; i++) {
+                    mSnapshot[3 + i * 3] = mStartMiles[i];
+                    mSnapshot[4 + i * 3] = mStartWhUsed[i];
+                    mSnapshot[5 + i * 3] = mStartWhRegen[i];
+                    mSnapshotTime[i] = mStartTime[i];
+                }
+            }
+            boolean written = false;
+            try {
+                File temp = new File(mFile.getPath() + ".tmp");
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+                try {
+                    out.writeInt(VERSION);
+                    out.writeInt(TRIPS);
+                    for (int i = 0; i < mSnapshot.length; i++) {
+                        out.writeDouble(mSnapshot[i]);
+                    }
+                    for (int i = 0; i < TRIPS; i++) {
+                        out.writeLong(mSnapshotTime[i]);
+                    }
+                } finally {
+                    out.close();
+                }
+                written = temp.renameTo(mFile);
+            } finally {
+                if (!written) {
+                    synchronized (this) {
+                        mDirty = true; /* try again next time */
+                    }
+                }
+            }
+            if (!written) {
+                throw new IOException("can't write " + mFile);
+            }
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+            try {
+                if (in.readInt() != VERSION || in.readInt() != TRIPS) {
+                    return;
+                }
+                double[] totals = new double[mSnapshot.length];
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] = in.readDouble();
+                }
+                long[] times = new long[TRIPS];
+                for (int i = 0; i < TRIPS; i++) {
+                    times[i] = in.readLong();
+                }
+                /* all read: only now take any of it */
+                mBaseMiles = totals[0] - mMeter.getMiles();
+                mBaseWhUsed = totals[1] - mMeter.getWhUsed();
+                mBaseWhRegen = totals[2] - mMeter.getWhRegenerated();
+                System.arraycopy(totals, 0, mSnapshot, 0, totals.length);
+                for (int i = 0; i < TRIPS; i++) {
+                    mStartMiles[i] = totals[3 + i * 3];
+                    mStartWhUsed[i] = totals[4 + i * 3];
+                    mStartWhRegen[i] = totals[5 + i * 3];
+                    mStartTime[i] = times[i];
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            /* unreadable or cut short; start from zero */
+        }
+    }
+
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < TRIPS; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(getTripName(i)).append(' ')
+                .append(String.format("%.2f", getMiles(i))).append(" mi, ")
+                .append(String.format("%.1f", getWhUsed(i))).append(" Wh used, ")
+                .append(String.format("%.1f", getWhRegenerated(i))).append(" Wh regenerated");
+        }
+        return sb.toString();
+    }
+}
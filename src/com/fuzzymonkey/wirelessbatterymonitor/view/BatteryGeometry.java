@@ -0,0 +1,63 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.view;
+
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.FixedFormat;
+
+/**
+ * The per-frame work of BatteryView.onDraw() apart from the canvas calls.
+ * Kept free of android.graphics so it can be exercised off the device.
+ */
+public final class BatteryGeometry {
+    /** Longest label kept after the reading, including the leading space. */
+    public static final int MAX_LABEL = 16;
+    /** Room needed for a reading followed by its label. */
+    public static final int MAX_TEXT = FixedFormat.MAX_LENGTH + MAX_LABEL;
+
+    private BatteryGeometry() {
+    }
+
+    /**
+     * Width of the level bar.
+     * @param stateOfCharge  percent, or NaN to scale value between min and max
+     * @param width  width of the battery body
+     */
+    public static double level(double value, double min, double max, float stateOfCharge,
+            int width) {
+        if (!Float.isNaN(stateOfCharge)) {
+            return stateOfCharge / 100 * width;
+        }
+        double level = (value - min) / (max - min) * width;
+        if (level > width) {
+            level = width;
+        }
+        return level;
+    }
+
+    /**
+     * Format the reading followed by the label into text.
+     * @param label  " " + label, at most MAX_LABEL chars
+     * @param text  at least MAX_TEXT chars
+     * @return the number of chars written
+     */
+    public static int reading(double value, char[] label, char[] text) {
+        int length = FixedFormat.format(value, 1, text, 0);
+        System.arraycopy(label, 0, text, length, label.length);
+        return length + label.length;
+    }
+}
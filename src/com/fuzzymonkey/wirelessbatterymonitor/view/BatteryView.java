@@ -17,10 +17,13 @@
 
 package com.fuzzymonkey.wirelessbatterymonitor.view;
 
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatencyProbe;
+
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.Typeface;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -36,12 +39,26 @@ public class BatteryView extends View {
     private Paint mTextPaint;
     private Paint mBigTextPaint;
     private Paint mShadePaint;
+    private Paint mOutlinePaint;
     final String TAG = "FUZZYMONKEY";
     protected final int ARCSTROKEWIDTH = 20;
     String mLabel = "v";
     double mMinValue = 34.2;
     double mMaxValue = 40;
     double mCurValue = 0;
+    /* estimated charge in percent; NaN until we have one, then it sets the
+       level instead of scaling the voltage */
+    float mStateOfCharge = Float.NaN;
+    private LatencyProbe mProbe = null;
+
+    /* layout, worked out in onSizeChanged() so onDraw() only draws */
+    private static final int MARGIN = 30;
+    private final Path mOutline = new Path();
+    private int mBatteryRight;
+
+    /* the reading is formatted into here, followed by " " + mLabel */
+    private final char[] mReadingText = new char[BatteryGeometry.MAX_TEXT];
+    private char[] mLabelText = " v".toCharArray();
 
     /**
      * Constructor.  This version is only needed if you will be instantiating
@@ -92,6 +109,15 @@ public class BatteryView extends View {
         mShadePaint.setTextSize(16);
         mShadePaint.setColor(0x6600FF00);
 
+        mOutlinePaint = new Paint();
+        mOutlinePaint.setAntiAlias(true);
+        mOutlinePaint.setColor(0xFF000000);
+        mOutlinePaint.setStyle(Paint.Style.STROKE);
+        mOutlinePaint.setStrokeWidth(5);
+
+        mBigTextPaint.setStrokeWidth(2);
+        mBigTextPaint.setTextAlign(Paint.Align.CENTER);
+
         Log.v(TAG,"Finished initGraphView");
     }
 
@@ -126,6 +152,7 @@ public class BatteryView extends View {
         Log.v(TAG,"Starting setTextColor with list size ");
         mTextPaint.setColor(color);
         mBigTextPaint.setColor(color);
+        mOutlinePaint.setColor(color);
         invalidate();
         Log.v(TAG,"Finished setTextColor with list size ");
     }
@@ -135,10 +162,8 @@ public class BatteryView extends View {
      */
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-        Log.v(TAG,"Starting onMeasure with list size ");
         setMeasuredDimension(measureWidth(widthMeasureSpec),
                 measureHeight(heightMeasureSpec));
-        Log.v(TAG,"Finished onMeasure with list size ");
    }
 
     /**
@@ -147,7 +172,6 @@ public class BatteryView extends View {
      * @return The width of the view, honoring constraints from measureSpec
      */
     private int measureWidth(int measureSpec) {
-        Log.v(TAG,"Starting measureWidth with list size ");
         int result = 0;
         int specMode = MeasureSpec.getMode(measureSpec);
         int specSize = MeasureSpec.getSize(measureSpec);
@@ -159,7 +183,6 @@ public class BatteryView extends View {
             result = 400;
         }
 
-        Log.v(TAG,"Finished measureWidth with list size ");
         return result;
     }
 
@@ -169,7 +192,6 @@ public class BatteryView extends View {
      * @return The height of the view, honoring constraints from measureSpec
      */
     private int measureHeight(int measureSpec) {
-        Log.v(TAG,"Starting measureHeight with list size ");
         int result = 0;
         int specMode = MeasureSpec.getMode(measureSpec);
         int specSize = MeasureSpec.getSize(measureSpec);
@@ -180,69 +202,66 @@ public class BatteryView extends View {
         } else {
             result = 200;
         }
-        Log.v(TAG,"Finished measureHeight with list size ");
         return result;
     }
 
     /**
-     * Render the text
-     * 
-     * @see android.view.View#onDraw(android.graphics.Canvas)
+     * Lay out the battery outline (body plus terminal tab) for this size.
      */
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        Log.v(TAG,"Starting onDraw");
-        final int MARGIN = 30;
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
         int left = MARGIN;
-        int right = getWidth() - MARGIN;
-        int bottom = getHeight() - MARGIN;
+        int right = w - MARGIN;
+        int bottom = h - MARGIN;
         int top = MARGIN;
         int battery_right = right - 40;
+        int tab_top = top + 20;
+        int tab_bottom = bottom - 20;
 
-        mTextPaint.setStrokeWidth(5);
+        mOutline.reset();
+        mOutline.moveTo(left, top);
+        mOutline.lineTo(battery_right, top);
+        mOutline.lineTo(battery_right, bottom);
+        mOutline.lineTo(left, bottom);
+        mOutline.close();
 
-        Log.v(TAG, "height = " + canvas.getHeight());
-        Log.v(TAG, "width = " + canvas.getWidth());
-        Log.v(TAG, "height = " + getHeight());
-        Log.v(TAG, "width = " + getWidth());
+        mOutline.moveTo(battery_right, tab_top);
+        mOutline.lineTo(right, tab_top);
+        mOutline.lineTo(right, tab_bottom);
+        mOutline.lineTo(battery_right, tab_bottom);
 
-        Log.v(TAG, "left = " + left);
-        Log.v(TAG, "right = " + right);
-        Log.v(TAG, "bottom = " + bottom);
-        Log.v(TAG, "top = " + top);
+        mBatteryRight = battery_right;
+    }
 
-        int tab_top = top + 20;
-        int tab_bottom = bottom - 20;
+    /**
+     * Render the battery.  This runs for every reading, so it must not log
+     * or allocate.
+     * 
+     * @see android.view.View#onDraw(android.graphics.Canvas)
+     */
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        int left = MARGIN;
+        int bottom = getHeight() - MARGIN;
+        int top = MARGIN;
 
         /* draw level */
-        canvas.drawRect(left, top, (float)(left + scale(mCurValue, battery_right - left)), bottom, mShadePaint);
-
-        canvas.drawLine(left, top, battery_right, top, mTextPaint);
-        canvas.drawLine(left, bottom, battery_right, bottom, mTextPaint);
-        canvas.drawLine(left, top, left, bottom, mTextPaint);
-        canvas.drawLine(battery_right, top, battery_right, bottom, mTextPaint);
+        double level = BatteryGeometry.level(mCurValue, mMinValue, mMaxValue, mStateOfCharge,
+                mBatteryRight - left);
+        canvas.drawRect(left, top, (float)(left + level), bottom, mShadePaint);
 
-        canvas.drawLine(battery_right, tab_top, right, tab_top, mTextPaint);
-        canvas.drawLine(battery_right, tab_bottom, right, tab_bottom, mTextPaint);
-        canvas.drawLine(battery_right, tab_top, battery_right, tab_bottom, mTextPaint);
-        canvas.drawLine(right, tab_top, right, tab_bottom, mTextPaint);
+        canvas.drawPath(mOutline, mOutlinePaint);
 
         int center_x = getWidth()/2;
         int center_y = getHeight()/2;
-        mBigTextPaint.setStrokeWidth(2);
-        mBigTextPaint.setTextAlign(Paint.Align.CENTER);
-        canvas.drawText(String.format("%02.1f " + mLabel, mCurValue), center_x, center_y + 20, mBigTextPaint);
+        int length = BatteryGeometry.reading(mCurValue, mLabelText, mReadingText);
+        canvas.drawText(mReadingText, 0, length, center_x, center_y + 20, mBigTextPaint);
 
-        Log.v(TAG,"Finished onDraw");
-    }
-
-    private double scale(double value, double max) {
-        double newvalue = (value - mMinValue) / (mMaxValue - mMinValue) * max;
-        if (newvalue > max) {
-            newvalue = max;
+        if (mProbe != null) {
+            mProbe.drawn();
         }
-        return newvalue;
     }
 
     public void setValue(double value) {
@@ -250,6 +269,16 @@ public class BatteryView extends View {
         invalidate();
     }
 
+    /**
+     * Show the level from a state of charge estimate rather than from the
+     * (load dependent) voltage.
+     * @param percent  0 to 100, or NaN to go back to scaling the voltage
+     */
+    public void setStateOfCharge(float percent) {
+        mStateOfCharge = percent;
+        invalidate();
+    }
+
     public void setMaxValue(float value) {
         mMaxValue = value;
         invalidate();
@@ -258,6 +287,14 @@ public class BatteryView extends View {
     public void setLabel(String newLabel) {
         Log.v(TAG, "setLabel to " + newLabel);
         mLabel = newLabel;
+        /* keep it short enough to fit after the reading */
+        String text = " " + newLabel;
+        mLabelText = text.substring(0, Math.min(text.length(), BatteryGeometry.MAX_LABEL)).toCharArray();
         invalidate();
     }
+
+    /** Report each draw to the probe, null to stop. */
+    public void setLatencyProbe(LatencyProbe probe) {
+        mProbe = probe;
+    }
 }
@@ -0,0 +1,58 @@
+/*
+* Copyright (c) 2011 Michael Spiceland
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fuzzymonkey.wirelessbatterymonitor.view;
+
+/**
+ * Dial math shared by the gauges.  Kept free of android.graphics so it can
+ * be exercised off the device.
+ */
+public final class DialGeometry {
+    private DialGeometry() {
+    }
+
+    /**
+     * Make a point from a radial distance from another point.
+     * @param out  Receives x in out[0] and y in out[1]
+     */
+    public static void pointAtAngle(float centerX, float centerY, float radius, float angle,
+            float[] out) {
+        angle = 375 - angle; // re-orient axes
+
+        final int RIGHT = 90;
+        float otherAngle = 180-RIGHT-angle;
+        /* implicit divide by sin(90) which is 1 */
+        double x = (radius * Math.sin((double) otherAngle*Math.PI/180));
+        double y = (radius * Math.sin((double) angle*Math.PI/180));
+
+        out[0] = centerX - (float)x;
+        out[1] = centerY + (float)y;
+    }
+
+    /**
+     * Precompute the unit vectors for a run of evenly spaced dial angles,
+     * so drawing can scale them by a radius instead of calling Math.sin.
+     */
+    public static void unitTable(float firstAngle, float step, float[] xs, float[] ys) {
+        float[] point = new float[2];
+        for (int i = 0; i < xs.length; i++) {
+            pointAtAngle(0, 0, 1, firstAngle + i * step, point);
+            xs[i] = point[0];
+            ys[i] = point[1];
+        }
+    }
+}
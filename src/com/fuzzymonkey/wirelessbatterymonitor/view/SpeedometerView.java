@@ -17,12 +17,15 @@
 
 package com.fuzzymonkey.wirelessbatterymonitor.view;
 
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.FixedFormat;
+import com.fuzzymonkey.wirelessbatterymonitor.telemetry.LatencyProbe;
+
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.PointF;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.util.AttributeSet;
@@ -47,6 +50,33 @@ public class SpeedometerView extends View {
     int mMinValue = 0;
     float mMaxValue = (float)25.0;
     float mCurValue = (float)0;
+    private LatencyProbe mProbe = null;
+
+    /* dial layout */
+    private static final int TICKMARGIN = 120;
+    private static final int TICKLENGTH = 20; /* ARCSTROKEWIDTH */
+    private static final int SWEEP = 210;
+    private static final int TICKSTEP = 15;
+    private static final int LABELSTEP = 30;
+    private static final int TICKS = SWEEP / TICKSTEP + 1;
+
+    /* unit vectors for each tick, so the dial never calls Math.sin */
+    private static final float[] TICK_X = new float[TICKS];
+    private static final float[] TICK_Y = new float[TICKS];
+    static {
+        DialGeometry.unitTable(0, TICKSTEP, TICK_X, TICK_Y);
+    }
+
+    /* the static part of the dial (ticks, labels, units) is drawn once
+       into mDial and only redrawn when the size, scale or text changes */
+    private Bitmap mDial = null;
+    private boolean mDialDirty = true;
+    private final float[] mTickLines = new float[TICKS * 4];
+    private float mCenterX;
+    private float mCenterY;
+    private final RectF mShadeArcRect = new RectF();
+    private final RectF mArcRect = new RectF();
+    private final char[] mValueText = new char[FixedFormat.MAX_LENGTH];
 
     /**
      * Constructor.  This version is only needed if you will be instantiating
@@ -109,6 +139,11 @@ public class SpeedometerView extends View {
         mShadeArcPaint.setStyle(Style.STROKE);
         mShadeArcPaint.setStrokeWidth(ARCSTROKEWIDTH);
 
+        mTextPaint.setStrokeWidth(2);
+        mTextPaint.setTextAlign(Paint.Align.CENTER);
+        mBigTextPaint.setStrokeWidth(2);
+        mBigTextPaint.setTextAlign(Paint.Align.CENTER);
+
         Log.v(TAG,"Finished initGraphView");
     }
 
@@ -130,6 +165,7 @@ public class SpeedometerView extends View {
     public void setTextSize(int size) {
         Log.v(TAG,"Starting setTextSize with list size ");
         mTextPaint.setTextSize(size);
+        mDialDirty = true;
         requestLayout();
         invalidate();
         Log.v(TAG,"Finished setTextSize with list size ");
@@ -143,6 +179,7 @@ public class SpeedometerView extends View {
         Log.v(TAG,"Starting setTextColor with list size ");
         mTextPaint.setColor(color);
         mBigTextPaint.setColor(color);
+        mDialDirty = true;
         invalidate();
         Log.v(TAG,"Finished setTextColor with list size ");
     }
@@ -185,8 +222,73 @@ public class SpeedometerView extends View {
         }
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        mCenterX = w/2;
+        mCenterY = h*2/3;
+        mShadeArcRect.set(mCenterX - TICKMARGIN - TICKLENGTH/2,
+                mCenterY - TICKMARGIN - TICKLENGTH/2,
+                mCenterX + TICKMARGIN + TICKLENGTH/2,
+                mCenterY + TICKMARGIN + TICKLENGTH/2);
+        mArcRect.set(mCenterX - TICKMARGIN,
+                mCenterY - TICKMARGIN,
+                mCenterX + TICKMARGIN,
+                mCenterY + TICKMARGIN);
+
+        if (mDial != null) {
+            mDial.recycle();
+            mDial = null;
+        }
+        mDialDirty = true;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mDial != null) {
+            mDial.recycle();
+            mDial = null;
+        }
+        mDialDirty = true;
+    }
+
+    /**
+     * Draw the parts of the gauge that don't move into mDial.
+     */
+    private void buildDial() {
+        if (mDial == null) {
+            mDial = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        } else {
+            mDial.eraseColor(Color.TRANSPARENT);
+        }
+        Canvas canvas = new Canvas(mDial);
+
+        /* TODO: these settings only work for landscape */
+        canvas.drawText(mLabel, mCenterX, mCenterY - 64, mTextPaint);
+
+        for (int i = 0; i < TICKS; i++) {
+            mTickLines[i*4] = mCenterX + TICKMARGIN * TICK_X[i];
+            mTickLines[i*4 + 1] = mCenterY + TICKMARGIN * TICK_Y[i];
+            mTickLines[i*4 + 2] = mCenterX + (TICKMARGIN + TICKLENGTH) * TICK_X[i];
+            mTickLines[i*4 + 3] = mCenterY + (TICKMARGIN + TICKLENGTH) * TICK_Y[i];
+
+            int angle = i * TICKSTEP;
+            if ((angle % LABELSTEP) == 0) {
+                float labelRadius = TICKMARGIN + TICKLENGTH + 20;
+                canvas.drawText(String.format("%d", Math.round(scaleValue(angle))),
+                        mCenterX + labelRadius * TICK_X[i],
+                        mCenterY + labelRadius * TICK_Y[i], mTextPaint);
+            }
+        }
+        canvas.drawLines(mTickLines, mTextPaint);
+
+        mDialDirty = false;
+    }
+
     /**
-     * Render the text
+     * Render the gauge: the cached dial, then the reading and its arc.
      * 
      * @see android.view.View#onDraw(android.graphics.Canvas)
      */
@@ -194,72 +296,28 @@ public class SpeedometerView extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        //int axisMargin = 10;
-        //int leftAxisExtraMargin = 20;
-        //int leftAxis = axisMargin + leftAxisExtraMargin+ getPaddingLeft();
-        //int bottomAxis = getHeight() - axisMargin;
-        PointF center;
-        PointF tickStart;
-        PointF tickEnd;
-        PointF tickLabel;
-        final int TICKMARGIN = 120;
-        final int TICKLENGTH = ARCSTROKEWIDTH;
-
-        center = new PointF(getWidth()/2, getHeight()*2/3);
-
-        mTextPaint.setStrokeWidth(2);
-
-        /* TODO: these settings only work for landscape */
-        canvas.drawText(mLabel, center.x, center.y - 64, mTextPaint);
-
-        mBigTextPaint.setStrokeWidth(2);
-        mBigTextPaint.setTextAlign(Paint.Align.CENTER);
-        canvas.drawText(String.format("%02.1f", mCurValue), center.x, center.y + 20, mBigTextPaint);
-
-        mTextPaint.setTextAlign(Paint.Align.CENTER);
-        for (int angle = 0; angle <= 210; angle += 15) {
-            tickStart = getPointAtAngle(center.x, center.y, TICKMARGIN, angle);
-            tickEnd = getPointAtAngle(center.x, center.y, TICKMARGIN + TICKLENGTH, angle);
-            tickLabel = getPointAtAngle(center.x, center.y, TICKMARGIN + TICKLENGTH + 20, angle);
-            canvas.drawLine(tickStart.x, tickStart.y, tickEnd.x, tickEnd.y, mTextPaint);
-            if ((angle % 30) == 0) {
-                canvas.drawText(String.format("%d", Math.round(scaleValue(angle))), tickLabel.x, tickLabel.y, mTextPaint);
-            }
+        if (getWidth() == 0 || getHeight() == 0) {
+            return;
         }
+        if (mDialDirty || mDial == null) {
+            buildDial();
+        }
+        canvas.drawBitmap(mDial, 0, 0, null);
 
-        RectF shadeArcRect = new RectF(center.x - TICKMARGIN- TICKLENGTH/2,
-                center.y - TICKMARGIN - TICKLENGTH/2,
-                center.x + TICKMARGIN + TICKLENGTH/2,
-                center.y + TICKMARGIN + TICKLENGTH/2);
+        int length = FixedFormat.format(mCurValue, 1, mValueText, 0);
+        canvas.drawText(mValueText, 0, length, mCenterX, mCenterY + 20, mBigTextPaint);
 
-        RectF arcRect = new RectF(center.x - TICKMARGIN,
-                center.y - TICKMARGIN,
-                center.x + TICKMARGIN,
-                center.y + TICKMARGIN);
+        float sweep = mCurValue / mMaxValue * SWEEP;
 
         /* grey shade */
-        canvas.drawArc(shadeArcRect, -195, mCurValue / mMaxValue * 210, false, mShadeArcPaint);
+        canvas.drawArc(mShadeArcRect, -195, sweep, false, mShadeArcPaint);
 
         /* bright highlight color */
-        canvas.drawArc(arcRect, -195, mCurValue / mMaxValue * 210, false, mArcPaint);
-    }
-
-    PointF getPointAtAngle(float centerX, float centerY, float radius, float angle) {
-        /*
-         * make a point from a radial distance from another point
-         * currently assumes (centerX, centerY) == (0, 0)
-         * Need to do something else to offset for centerX and center Y
-         */
+        canvas.drawArc(mArcRect, -195, sweep, false, mArcPaint);
 
-        angle = 375 - angle; // re-orient axes
-
-        final int RIGHT = 90;
-        float otherAngle = 180-RIGHT-angle;
-        /* implicit divide by sin(90) which is 1 */
-        double x = (radius * Math.sin((double) otherAngle*Math.PI/180));
-        double y = (radius * Math.sin((double) angle*Math.PI/180));
-
-        return new PointF(centerX - (float)x, centerY + (float)y);
+        if (mProbe != null) {
+            mProbe.drawn();
+        }
     }
 
     /* get a value and scale it based on our configured min and max */
@@ -274,12 +332,19 @@ public class SpeedometerView extends View {
 
     public void setMaxValue(float value) {
         mMaxValue = value;
+        mDialDirty = true;
         invalidate();
     }
 
     public void setLabel(String newLabel) {
         Log.v(TAG, "setLabel to " + newLabel);
         mLabel = newLabel;
+        mDialDirty = true;
         invalidate();
     }
+
+    /** Report each draw to the probe, null to stop. */
+    public void setLatencyProbe(LatencyProbe probe) {
+        mProbe = probe;
+    }
 }